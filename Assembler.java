@@ -1,7 +1,10 @@
 /**************************************************************************************************
  * Compilation: javac Assembler.java
  * Execution: java Assembler fileName
- * Dependencies: none
+ * Dependencies: ParsedProgram.java BinaryEncoder.java OperationTable.java SymbolTable.java MappedSource.java
+ *               OutputSink.java MemoryImage.java BatchAssembler.java InstructionSet.java
+ *               AssemblerDaemon.java CrossReference.java AssemblyCache.java
+ *               OccupancyMap.java AssemblyStats.java AssemblerEvents.java MacroTable.java
  * 
  * An assembler than converts assembly language programs to machine language for the Mano Basic Computer
  * (found in Morris Mano's Copmuter System Architecture). The file to be converted is specified as a command
@@ -9,29 +12,164 @@
  * **************************************************************************************************/
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
-
-import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.UnsupportedEncodingException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Assembler {
 
-    // Symbols tables to store instruction opcodes and their machine code
-    Set<String> pseudoInstructionSet;
-    Map<String, String> memoryInstructionTable;
-    Map<String, String> nonMemoryInstructionTable;
-    Map<String, Integer> addressSymbolTable;
+    // Symbol table to store the labels of the program and their addresses, instructions refer to the labels
+    // by their ids in this table
+    // the instruction tables are in InstructionSet, they are immutable and shared by all of the assemblers
+    final SymbolTable symbolTable = new SymbolTable();
+
+    /**
+     * The version of the assembler, part of the key of the AssemblyCache. It must be incremented by every
+     * change that changes the output of some program, so that no outdated output is taken from a cache.
+     */
+    public static final int VERSION = 1;
+
+    // The pseudo instructions as stored in Instruction.operation
+    static final int ORG = 0;
+    static final int END = 1;
+    static final int HEX = 2;
+    static final int DEC = 3;
+
+    // The macro pseudo instructions and the invocation of a macro, which are expanded by the passes and
+    // never stored in parsedProgram
+    static final int MACRO = 4;
+    static final int ENDM = 5;
+    static final int INVOKE = 6;
+
+    // The operand of an MRI whose label has not been defined (yet)
+    static final int UNRESOLVED = -1;
+
+    // The type of an instruction
+    enum Type { MRI, NON_MRI, PSEUDO }
+    static final Type[] TYPES = Type.values();
+
+    /**
+     * The ways a program can be assembled. TWO_PASS collects the labels in a first pass and translates in
+     * a second pass, ONE_PASS translates while reading the program and backpatches forward references to
+     * labels once they are defined. PARALLEL is TWO_PASS with both passes split into chunks of lines that
+     * are handled on the common ForkJoinPool, the first pass only if the program is a random access list
+     * or a mapped file. BOUNDED is TWO_PASS without keeping the disected lines: the first pass only
+     * collects the labels and the second pass reads and disects the program again, so the memory taken does
+     * not grow with the program (only with its labels).
+     */
+    public enum Mode { TWO_PASS, ONE_PASS, PARALLEL, BOUNDED }
+
+    // The smallest number of lines (or bytes of a mapped file) handled as a chunk by the parallel passes
+    private static final int MIN_CHUNK_SIZE = 8192;
+    private static final int MIN_CHUNK_BYTES = 16 * MIN_CHUNK_SIZE;
+
+    // The most overlaps reported as warnings for a program, the rest are only counted
+    private static final int MAX_OVERLAP_WARNINGS = 100;
+
+    // The deepest nesting of invocations of macros in the bodies of macros, which stops recursive macros
+    private static final int MAX_MACRO_DEPTH = 64;
+
+    // The most words buffered by the one pass assembler while a word waits for a label, a fixup link has
+    // 28 bits
+    private static final int MAX_FIXUP_LINK = (1 << 28) - 1;
+
+    // A disected instruction, the fields are described at disectInstruction
+    static class Instruction {
+        Type type;
+        int operation;
+        int operand;
+        boolean indirect;
+        int location;
+        int symbol;
+        int label;
+        int line;
+        List<String> arguments;
+    }
+
+    // The instruction record reused by the second pass for every line
+    private final Instruction disectedInstruction = new Instruction();
+
+    // The words emitted by the one pass assembler, kept until the forward references before them are patched
+    // words before flushedCount have been written to the sink
+    private int[] wordLocations;
+    private int[] words;
+    private boolean[] waiting;
+
+    // the chains of the words waiting for every label, indexed by the id of the label: the index of the last
+    // word waiting for the label plus 1, 0 if none waits
+    private int[] fixups;
+    private int wordCount;
+    private int flushedCount;
+    private final OutputSink wordBuffer = this::bufferWord;
+
+    // The number of lines and words of the last program assembled in one pass or with bounded memory, which
+    // has no parsedProgram
+    private int streamedLines;
+    private int streamedWords;
+
+    // The destination of the machine code
+    private OutputSink sink;
+
+    // The program as disected by the first pass
+    final ParsedProgram parsedProgram = new ParsedProgram();
+
+    // The disected lines of the last edit of reassemble, reused by the next one
+    private final ParsedProgram editedLines = new ParsedProgram(16, false);
+
+    // The macros defined by the program, with the expansions of their invocations
+    private final MacroTable macros = new MacroTable();
+
+    // The final output as a list of strings, and the sink that collects it
+    final List<String> outputCode = new ArrayList<>();
+    private final OutputSink outputCodeSink = OutputSink.toList(outputCode);
+
+    // Are the lines of the last program in parsedProgram? They are not after a single pass
+    private boolean parsed;
 
-    // The final output as a list of strings
-    List<String> outputCode;
+    // The MRIs referring to every label of parsedProgram, built when it is first needed
+    private CrossReference crossReference;
+
+    // The addresses written by the last program and the words that overlap, recorded during translation
+    // reassemble only marks them stale, they are found again from parsedProgram when they are asked for
+    // only the overlaps that are printed are kept, so a program assembled over itself takes no memory per word
+    private final OccupancyMap occupancy = new OccupancyMap(MAX_OVERLAP_WARNINGS);
+    private boolean occupancyStale;
+
+    // The statistics of the phases of the next programs, null if they are not collected
+    private AssemblyStats stats;
+
+    // The flight recorder event of the phase that is running, null between programs
+    private AssemblerEvents.Phase phaseEvent;
+
+    // Are the lines of the program being timed for flight recorder line events?
+    private boolean traceLines;
+
+    // The line rendered by the translation of a single instruction, for reassemble
+    private final List<String> translatedLine = new ArrayList<>(1);
+    private final OutputSink translatedLineSink = OutputSink.toList(translatedLine);
+
+    /**
+     * The constructor of an assembler that has not assembled anything yet. The assembler can be used
+     * for any number of programs with assemble, which reuses its tables and buffers. An assembler can
+     * only assemble one program at a time, but any number of them can work in parallel.
+     */
+    public Assembler() {
+    }
 
     /**
      * The constructor that initializes all of the symbol tables and assembles the input program
@@ -40,142 +178,1144 @@ public class Assembler {
      * @param program the program to assemble as a list of strings
      */
     public Assembler(List<String> program) {
-        // initialize all of the tables
-        pseudoInstructionSet = new HashSet<>();
-        pseudoInstructionSet.add("ORG");
-        pseudoInstructionSet.add("END");
-        pseudoInstructionSet.add("HEX");
-        pseudoInstructionSet.add("DEC");
-
-        memoryInstructionTable = new HashMap<>();
-        memoryInstructionTable.put("AND", "000");
-        memoryInstructionTable.put("ADD", "001");
-        memoryInstructionTable.put("LDA", "010");
-        memoryInstructionTable.put("STA", "011");
-        memoryInstructionTable.put("BUN", "100");
-        memoryInstructionTable.put("BSA", "101");
-        memoryInstructionTable.put("ISZ", "110");
-
-        nonMemoryInstructionTable = new HashMap<>();
-        nonMemoryInstructionTable.put("CLA", "0111100000000000");
-        nonMemoryInstructionTable.put("CLE", "0111010000000000");
-        nonMemoryInstructionTable.put("CMA", "0111001000000000");
-        nonMemoryInstructionTable.put("CME", "0111000100000000");
-        nonMemoryInstructionTable.put("CIR", "0111000010000000");
-        nonMemoryInstructionTable.put("CIL", "0111000001000000");
-        nonMemoryInstructionTable.put("INC", "0111000000100000");
-        nonMemoryInstructionTable.put("SPA", "0111000000010000");
-        nonMemoryInstructionTable.put("SNA", "0111000000001000");
-        nonMemoryInstructionTable.put("SZA", "0111000000000100");
-        nonMemoryInstructionTable.put("SZE", "0111000000000010");
-        nonMemoryInstructionTable.put("HLT", "0111000000000001");
-        nonMemoryInstructionTable.put("INP", "1111100000000000");
-        nonMemoryInstructionTable.put("OUT", "1111010000000000");
-        nonMemoryInstructionTable.put("SKI", "1111001000000000");
-        nonMemoryInstructionTable.put("SKO", "1111000100000000");
-        nonMemoryInstructionTable.put("ION", "1111000010000000");
-        nonMemoryInstructionTable.put("IOF", "1111000001000000");
-
-        addressSymbolTable = new HashMap<>();
-        outputCode = new ArrayList<>();
-
-        // assemble the program in two passes, output is impicitly stored in outputCode
-        firstPass(program);
-        secondPass(program);
+        this(program, Mode.TWO_PASS);
+    }
+
+    /**
+     * The constructor that initializes all of the symbol tables and assembles the input program
+     * into machine code output using the specified mode. In ONE_PASS mode the program is read exactly
+     * once, so it may be produced while the assembler consumes it.
+     *
+     * @param program the program to assemble as a sequence of strings
+     * @param mode how the program is assembled
+     */
+    public Assembler(Iterable<? extends CharSequence> program, Mode mode) {
+        this(program, mode, null);
+    }
+
+    /**
+     * The constructor that initializes all of the symbol tables and assembles the input program
+     * into machine code, which is written to the specified sink word by word as it is produced.
+     * Nothing is collected for getOutput in that case.
+     *
+     * @param program the program to assemble as a sequence of strings
+     * @param mode how the program is assembled
+     * @param sink the destination of the machine code, null to collect it for getOutput
+     */
+    public Assembler(Iterable<? extends CharSequence> program, Mode mode, OutputSink sink) {
+        assemble(program, mode, sink);
+    }
+
+    /**
+     * Assemble a program in two passes, after forgetting the previous program.
+     *
+     * @param program the program to assemble as a sequence of strings
+     * @return the assembled machine code, as returned by getOutput
+     */
+    public List<String> assemble(Iterable<? extends CharSequence> program) {
+        assemble(program, Mode.TWO_PASS, null);
+        return outputCode;
+    }
+
+    /**
+     * Assemble a program using the specified mode, after forgetting the previous program. The machine
+     * code is written to the sink word by word as it is produced, nothing is collected for getOutput
+     * in that case.
+     *
+     * @param program the program to assemble as a sequence of strings
+     * @param mode how the program is assembled
+     * @param sink the destination of the machine code, null to collect it for getOutput
+     */
+    public void assemble(Iterable<? extends CharSequence> program, Mode mode, OutputSink sink) {
+        assemble(program, mode, sink, "");
+    }
+
+    // assemble a program read from the named source, the name is only used for the flight recorder
+    private void assemble(Iterable<? extends CharSequence> program, Mode mode, OutputSink sink, String source) {
+        AssemblerEvents.Assembly event = new AssemblerEvents.Assembly();
+        event.begin();
+        reset();
+        this.sink = sink != null ? sink : outputCodeSink;
+        traceLines = AssemblerEvents.isLineEnabled();
+
+        try {
+            // assemble the program, output is impicitly written to the sink
+            if (mode == Mode.ONE_PASS) {
+                startPhase("one pass");
+                onePass(program);
+            } else if (mode == Mode.BOUNDED) {
+                startPhase("first pass");
+                boundedFirstPass(program);
+                startPhase("second pass");
+                boundedSecondPass(program);
+            } else if (mode == Mode.PARALLEL) {
+                startPhase("first pass");
+                List<? extends Iterable<? extends CharSequence>> parts = split(program);
+                if (parts == null || !parallelFirstPass(parts)) {
+                    firstPass(program);
+                }
+                startPhase("second pass");
+                parallelSecondPass();
+            } else {
+                startPhase("first pass");
+                firstPass(program);
+                startPhase("second pass");
+                secondPass();
+            }
+            if (macros.isDefining()) {
+                throw new RuntimeException("MACRO without ENDM : " + macros.getDefining());
+            }
+            startPhase("finish");
+            this.sink.finish();
+            parsed = mode == Mode.TWO_PASS || mode == Mode.PARALLEL;
+        } finally {
+            endPhase();
+        }
+
+        int lines = parsed ? parsedProgram.size() : streamedLines;
+        if (stats != null) {
+            int words = parsed ? parsedProgram.countWords(0, parsedProgram.size()) : streamedWords;
+            stats.setProgram(mode.name(), lines, words, countLabels(), false);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.mode = mode.name();
+            event.lines = lines;
+            event.commit();
+        }
+    }
+
+    /**
+     * Collect the statistics of the phases of the programs assembled from now on, or stop collecting them.
+     * The phases of every program are added to the same statistics.
+     *
+     * @param stats the statistics to add to, null to not collect statistics
+     */
+    void setStats(AssemblyStats stats) {
+        this.stats = stats;
+    }
+
+    // start a phase of the statistics, if they are collected, and its flight recorder event
+    // the phase that is running is ended
+    private void startPhase(String phase) {
+        endPhase();
+        if (stats != null) {
+            stats.start(phase);
+        }
+        phaseEvent = new AssemblerEvents.Phase(phase);
+        phaseEvent.begin();
+    }
+
+    // end the phase that is running, if any
+    private void endPhase() {
+        if (stats != null) {
+            stats.stop();
+        }
+        if (phaseEvent != null) {
+            phaseEvent.commit();
+            phaseEvent = null;
+        }
+    }
+
+    // the number of symbols defined as labels
+    private int countLabels() {
+        int labels = 0;
+        for (int id = 0; id < symbolTable.size(); id++) {
+            if (symbolTable.getAddress(id) != SymbolTable.UNDEFINED) {
+                labels++;
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Replace lines of the last program and update its output, without assembling the whole program again.
+     * The lines [from, to) of the program are replaced by the specified lines; from == to inserts them and
+     * an empty list deletes the lines. Only the new lines are disected. The lines after them up to the next
+     * ORG are moved if the number of words changed, and the MRIs referring to labels that moved are
+     * translated again; the rest of the output is kept. A label defined by more than one line has the
+     * address of its last definition, as when the whole program is assembled. The line numbers count the
+     * lines up to END, which can not be edited itself. The program must have been assembled in TWO_PASS or
+     * PARALLEL mode to getOutput.
+     * <p>
+     * The position of the edit in the output and the uses of the labels are found in the cross reference
+     * index, which is updated from the blocks of lines around the edit only. What still takes time in
+     * proportion to the size of the program is shifting what follows the edit: the disected lines are moved
+     * with one bulk copy of their records when the number of lines changes, and the output with one shift of
+     * the elements of its List of Strings when the number of words changes. An edit that keeps both is
+     * written in place.
+     *
+     * @param from the index of the first line to replace
+     * @param to the index just after the last line to replace
+     * @param lines the new lines
+     * @return the updated machine code, as returned by getOutput
+     * @throws IllegalStateException if the last program was assembled in one pass, with bounded memory or to
+     *                               a sink
+     * @throws IndexOutOfBoundsException if the range is not within the lines before END
+     * @throws IllegalArgumentException if one of the new lines is END, MACRO, ENDM or an invocation of a macro
+     * @throws RuntimeException if a label used by the program is no longer defined; the program is unchanged
+     */
+    public List<String> reassemble(int from, int to, List<String> lines) {
+        if (!parsed || sink != outputCodeSink) {
+            throw new IllegalStateException("The last program was not assembled with its lines to getOutput");
+        }
+        if (from < 0 || to < from || to > parsedProgram.size()) {
+            throw new IndexOutOfBoundsException("Invalid line range : " + from + " to " + to);
+        }
+
+        // disect the new lines, their locations are assigned below and they are numbered after the line before
+        // them; the sets of labels are indexed by the ids of the symbols
+        ParsedProgram edit = editedLines;
+        edit.clear();
+        BitSet addedLabels = new BitSet();
+        int lineNumber = from == 0 ? 0 : parsedProgram.getLine(from - 1);
+        for (String line : lines) {
+            disectInstruction(line, 0, disectedInstruction);
+            disectedInstruction.line = ++lineNumber;
+            if (disectedInstruction.type == Type.PSEUDO && disectedInstruction.operation == END) {
+                throw new IllegalArgumentException("END can not be edited, assemble the program again");
+            }
+            if (isMacro(disectedInstruction)) {
+                throw new IllegalArgumentException("Macros can not be edited, assemble the program again");
+            }
+            if (disectedInstruction.label != SymbolTable.NONE) {
+                addedLabels.set(disectedInstruction.label);
+            }
+            edit.add(disectedInstruction);
+        }
+
+        // the labels of the replaced lines that are no longer defined by any line, the labels defined more
+        // than once are found in the cross reference index
+        CrossReference references = getCrossReference();
+        BitSet replacedLabels = new BitSet();
+        BitSet removedLabels = new BitSet();
+        for (int i = from; i < to; i++) {
+            int label = parsedProgram.getLabel(i);
+            if (label != SymbolTable.NONE) {
+                replacedLabels.set(label);
+                if (!addedLabels.get(label) && (references.countDefinitions(label) == 1
+                        || countDefinitions(label, from, to) == references.countDefinitions(label))) {
+                    removedLabels.set(label);
+                }
+            }
+        }
+
+        // check that every label used after the edit is defined, before anything is changed
+        for (int i = 0; i < edit.size(); i++) {
+            edit.get(i, disectedInstruction);
+            int symbol = disectedInstruction.symbol;
+            if (disectedInstruction.type == Type.MRI && (symbol == SymbolTable.NONE || !addedLabels.get(symbol)
+                    && (removedLabels.get(symbol) || symbolTable.getAddress(symbol) == SymbolTable.UNDEFINED))) {
+                throw new RuntimeException("Undefined label : " + symbolTable.getSymbol(symbol));
+            }
+        }
+        for (int label = removedLabels.nextSetBit(0); label >= 0; label = removedLabels.nextSetBit(label + 1)) {
+            if (references.isUsedOutside(label, from, to)) {
+                throw new RuntimeException("Undefined label : " + symbolTable.getSymbol(label));
+            }
+        }
+
+        // replace the lines
+        int outputFrom = references.getWordIndex(parsedProgram, from);
+        int outputTo = outputFrom + parsedProgram.countWords(from, to);
+        parsedProgram.replace(from, to, edit);
+
+        // locate the new lines and move the lines after them up to the next ORG, or up to the first line that
+        // is already at its location; the labels of all of these lines may have moved
+        BitSet movedLabels = replacedLabels;
+        movedLabels.or(addedLabels);
+        int editEnd = from + edit.size();
+        int locationCounter = 0;
+        if (from > 0) {
+            parsedProgram.get(from - 1, disectedInstruction);
+            locationCounter = getNextLocation(disectedInstruction, disectedInstruction.location);
+        }
+        int movedEnd = from;
+        for (; movedEnd < parsedProgram.size(); movedEnd++) {
+            parsedProgram.get(movedEnd, disectedInstruction);
+            if (movedEnd >= editEnd && (disectedInstruction.location == locationCounter
+                    || disectedInstruction.type == Type.PSEUDO && disectedInstruction.operation == ORG)) {
+                break;
+            }
+
+            parsedProgram.setLocation(movedEnd, locationCounter);
+            if (disectedInstruction.label != SymbolTable.NONE) {
+                movedLabels.set(disectedInstruction.label);
+            }
+            locationCounter = getNextLocation(disectedInstruction, locationCounter);
+        }
+
+        // a label is at its last definition, as when the program is assembled, which may be outside of the
+        // edit; only the labels whose address changed are kept in movedLabels
+        references.replace(from, to, parsedProgram, editEnd, movedEnd);
+        for (int label = movedLabels.nextSetBit(0); label >= 0; label = movedLabels.nextSetBit(label + 1)) {
+            int definition = references.getLastDefinition(label);
+            int address = definition < 0 ? SymbolTable.UNDEFINED : parsedProgram.getLocation(definition);
+            int previous = symbolTable.getAddress(label);
+            symbolTable.setAddress(label, address);
+            if (previous == SymbolTable.UNDEFINED || address == SymbolTable.UNDEFINED || previous == address) {
+                movedLabels.clear(label);
+            }
+        }
+
+        // translate the new and the moved lines, they replace the output of the old and the moved lines
+        int movedWords = parsedProgram.countWords(editEnd, movedEnd);
+        List<String> translated = new ArrayList<>(movedEnd - from);
+        for (int i = from; i < movedEnd; i++) {
+            String line = translateLine(i);
+            if (line != null) {
+                translated.add(line);
+            }
+        }
+        // the words common to both are set in place, and the words after them are only shifted by the
+        // difference in the number of words
+        int replacedCount = outputTo + movedWords - outputFrom;
+        int common = Math.min(replacedCount, translated.size());
+        for (int i = 0; i < common; i++) {
+            outputCode.set(outputFrom + i, translated.get(i));
+        }
+        if (translated.size() > common) {
+            outputCode.addAll(outputFrom + common, translated.subList(common, translated.size()));
+        } else if (replacedCount > common) {
+            outputCode.subList(outputFrom + common, outputFrom + replacedCount).clear();
+        }
+
+        // translate the MRIs elsewhere in the program that refer to a label that moved, found in the
+        // cross reference index
+        for (int label = movedLabels.nextSetBit(0); label >= 0; label = movedLabels.nextSetBit(label + 1)) {
+            int[] uses = references.getLines(label);
+            int[] words = references.getWords(label);
+            for (int use = 0; use < uses.length; use++) {
+                if (uses[use] < from || uses[use] >= movedEnd) {
+                    outputCode.set(words[use], translateLine(uses[use]));
+                }
+            }
+        }
+        occupancyStale = true;
+
+        return outputCode;
+    }
+
+    // the number of lines [from, to) of parsedProgram that define a label
+    private int countDefinitions(int label, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (parsedProgram.getLabel(i) == label) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // translate a line of parsedProgram into its line of output, null for ORG which has none
+    private String translateLine(int index) {
+        parsedProgram.get(index, disectedInstruction);
+        resolveOperand(disectedInstruction);
+        translatedLine.clear();
+        translateInstruction(disectedInstruction, disectedInstruction.location, translatedLineSink);
+        return translatedLine.isEmpty() ? null : translatedLine.get(0);
+    }
+
+    /**
+     * Forget the assembled program: its labels, its disected lines and its output. The memory that was
+     * allocated for them is kept for the next program.
+     */
+    public void reset() {
+        symbolTable.clear();
+        parsedProgram.clear();
+        macros.clear();
+        outputCode.clear();
+        sink = null;
+        parsed = false;
+        crossReference = null;
+        occupancy.clear();
+        occupancyStale = false;
+    }
+
+    /**
+     * Get the lines of the MRIs that refer to a label of the last program. The lines are numbered as for
+     * reassemble. The program must have been assembled in TWO_PASS or PARALLEL mode.
+     *
+     * @param label the label
+     * @return the indexes of the lines referring to the label, ascending
+     * @throws IllegalStateException if the last program was assembled in one pass or with bounded memory
+     */
+    public int[] getReferenceLines(String label) {
+        return getCrossReference().getLines(symbolTable.find(label));
+    }
+
+    /**
+     * Get the addresses of the MRIs that refer to a label of the last program. The program must have been
+     * assembled in TWO_PASS or PARALLEL mode.
+     *
+     * @param label the label
+     * @return the locations of the MRIs referring to the label, in the order of getReferenceLines
+     * @throws IllegalStateException if the last program was assembled in one pass or with bounded memory
+     */
+    public int[] getReferenceAddresses(String label) {
+        return getCrossReference().getAddresses(symbolTable.find(label));
+    }
+
+    /**
+     * Write the cross reference listing of the last program: every label with its address and the line
+     * number and the address of every MRI that refers to it. The program must have been assembled in
+     * TWO_PASS or PARALLEL mode.
+     *
+     * @param output the stream to write to
+     * @throws IllegalStateException if the last program was assembled in one pass or with bounded memory
+     */
+    public void writeCrossReference(PrintStream output) {
+        getCrossReference().writeListing(output, parsedProgram, symbolTable);
+    }
+
+    /**
+     * Get the words of the last program that were placed at an address already taken by an earlier word,
+     * as when an ORG points into a region that has been filled before. The later word is the one that ends
+     * up in memory. Lines are the lines of the source, from 1 and counting blank lines; a word of a macro
+     * expansion is reported at the line of the invocation, and a line added by reassemble is numbered after
+     * the line before it. Only the first 100 overlaps are kept while a program is assembled; the others are
+     * found again from the disected lines, so of a program assembled in one pass or with bounded memory
+     * only the first 100 are returned.
+     *
+     * @return a message for every overlap, in the order the words were written; empty if there are none
+     */
+    public List<String> getOverlaps() {
+        return getOverlaps(Integer.MAX_VALUE);
+    }
+
+    // the messages of the first overlaps, at most max of them
+    private List<String> getOverlaps(int max) {
+        if (occupancyStale) {
+            occupancy.clear();
+            occupyLines(0, parsedProgram.size(), occupancy);
+            occupancyStale = false;
+        }
+
+        // the overlaps that were only counted are found again
+        OccupancyMap overlapping = occupancy;
+        if (max > occupancy.getKept() && occupancy.size() > occupancy.getKept() && parsed) {
+            overlapping = new OccupancyMap(Integer.MAX_VALUE);
+            occupyLines(0, parsedProgram.size(), overlapping);
+        }
+
+        int count = Math.min(max, overlapping.getKept());
+        List<String> overlaps = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            overlaps.add("Overlap at address " + overlapping.getAddress(i) + " : line "
+                    + overlapping.getLaterLine(i) + " overwrites line " + overlapping.getEarlierLine(i));
+        }
+        return overlaps;
+    }
+
+    // the warnings printed for the overlaps of the last program
+    List<String> getOverlapWarnings() {
+        List<String> warnings = getOverlapMessages();
+        warnings.replaceAll(overlap -> "Warning : " + overlap);
+        return warnings;
+    }
+
+    // the messages of the overlap warnings, a program that was assembled over itself (such as one that
+    // starts again at ORG 0) gets a summary instead of a message for every word
+    List<String> getOverlapMessages() {
+        List<String> messages = getOverlaps(MAX_OVERLAP_WARNINGS);
+        if (occupancy.size() > messages.size()) {
+            messages.add((occupancy.size() - messages.size()) + " more overlaps");
+        }
+        return messages;
+    }
+
+    // the cross reference index of parsedProgram
+    private CrossReference getCrossReference() {
+        if (!parsed) {
+            throw new IllegalStateException("The lines of the last program were not kept");
+        }
+        if (crossReference == null) {
+            crossReference = new CrossReference(parsedProgram);
+        }
+        return crossReference;
     }
 
     /**
-     * Get the assembled output as a list of strings
+     * Get the assembled output as a list of strings, empty if the output went to a sink
      * @return the assembled machine code
      */
     public List<String> getOutput() {
         return outputCode;
     }
 
+    /**
+     * Get the assembled output as the 4096 words of memory, when it was written to a MemoryImage
+     * @return the memory image (not copied)
+     * @throws IllegalStateException if the output did not go to a MemoryImage
+     */
+    public short[] getImage() {
+        return getMemoryImage().getImage();
+    }
+
+    /**
+     * Get the addresses the assembled program occupies, when it was written to a MemoryImage
+     * @return the occupied addresses
+     * @throws IllegalStateException if the output did not go to a MemoryImage
+     */
+    public BitSet getOccupied() {
+        return getMemoryImage().getOccupied();
+    }
+
+    // the sink as a memory image
+    private MemoryImage getMemoryImage() {
+        if (!(sink instanceof MemoryImage)) {
+            throw new IllegalStateException("The output was not written to a MemoryImage");
+        }
+        return (MemoryImage) sink;
+    }
+
     // run the first pass of the assembler
-    // associate all of the labels with their memory addresses
-    private void firstPass(List<String> program) {
+    // disect every line once into parsedProgram and associate all of the labels with their memory addresses
+    void firstPass(Iterable<? extends CharSequence> program) {
+        parsedProgram.clear();
         int locationCounter = 0;
+        int position = 0;
+
+        for (CharSequence instruction : program) {
+            position++;
+
+            // the lines of the body of a macro are only recorded
+            if (macros.isDefining()) {
+                macros.addLine(instruction);
+                continue;
+            }
 
-        for (String instruction : program) {
-            if (hasLabel(instruction)) {
-                addressSymbolTable.put(getLabel(instruction), locationCounter);
-                locationCounter++;
+            int line = lineNumber(instruction, position);
+            if (traceLines) {
+                disectTraced(instruction, locationCounter, line);
             } else {
-                String operation = getOperation(instruction);
-                if (operation.equals("ORG")) {
-                    locationCounter = Integer.parseInt(getOrgOperand(instruction));
-                } else if (operation.equals("END")) {
-                    break;
-                } else {
-                    locationCounter++;
+                disectInstruction(instruction, locationCounter, disectedInstruction);
+            }
+
+            if (isMacro(disectedInstruction)) {
+                ParsedProgram expansion = macroLine(instruction);
+                if (expansion != null) {
+                    defineLabels(expansion, disectedInstruction.label, locationCounter);
+                    int from = parsedProgram.size();
+                    parsedProgram.append(expansion, expansion.size(), locationCounter, line, null);
+                    if (disectedInstruction.label != SymbolTable.NONE) {
+                        parsedProgram.setLabel(from, disectedInstruction.label);
+                    }
+                    locationCounter += expansion.size();
+                }
+                continue;
+            }
+
+            if (disectedInstruction.label != SymbolTable.NONE) {
+                symbolTable.setAddress(disectedInstruction.label, locationCounter);
+            }
+
+            locationCounter = getNextLocation(disectedInstruction, locationCounter);
+
+            // -1 denotes that END instruction has been encountered
+            if (locationCounter == -1) break;
+
+            disectedInstruction.line = line;
+            parsedProgram.add(disectedInstruction);
+        }
+    }
+
+    // run the first pass without keeping the lines, for BOUNDED
+    // only the labels are associated with their memory addresses
+    void boundedFirstPass(Iterable<? extends CharSequence> program) {
+        parsedProgram.clear();
+        int locationCounter = 0;
+        int position = 0;
+
+        for (CharSequence instruction : program) {
+            position++;
+            if (macros.isDefining()) {
+                macros.addLine(instruction);
+                continue;
+            }
+
+            if (traceLines) {
+                disectTraced(instruction, locationCounter, lineNumber(instruction, position));
+            } else {
+                disectInstruction(instruction, locationCounter, disectedInstruction);
+            }
+
+            if (isMacro(disectedInstruction)) {
+                ParsedProgram expansion = macroLine(instruction);
+                if (expansion != null) {
+                    defineLabels(expansion, disectedInstruction.label, locationCounter);
+                    locationCounter += expansion.size();
+                }
+                continue;
+            }
+
+            if (disectedInstruction.label != SymbolTable.NONE) {
+                symbolTable.setAddress(disectedInstruction.label, locationCounter);
+            }
+
+            locationCounter = getNextLocation(disectedInstruction, locationCounter);
+
+            // -1 denotes that END instruction has been encountered
+            if (locationCounter == -1) break;
+        }
+    }
+
+    // run the second pass for BOUNDED
+    // read and disect the program again, now that the symbol table is complete, and write the machine code
+    // to the sink
+    // the macros are defined again as they are read, the lines of their expansions are counted as lines
+    void boundedSecondPass(Iterable<? extends CharSequence> program) {
+        macros.clear();
+        int locationCounter = 0;
+        int position = 0;
+        int lines = 0;
+        streamedWords = 0;
+
+        for (CharSequence instruction : program) {
+            position++;
+            if (macros.isDefining()) {
+                macros.addLine(instruction);
+                continue;
+            }
+
+            int line = lineNumber(instruction, position);
+            disectInstruction(instruction, locationCounter, disectedInstruction);
+            if (disectedInstruction.type == Type.PSEUDO && disectedInstruction.operation == END) break;
+
+            if (isMacro(disectedInstruction)) {
+                ParsedProgram expansion = macroLine(instruction);
+                int invocation = locationCounter;
+                for (int i = 0; expansion != null && i < expansion.size(); i++) {
+                    expansion.get(i, disectedInstruction);
+                    disectedInstruction.location += invocation;
+                    locationCounter = translateStreamed(locationCounter, line);
+                    lines++;
+                }
+                continue;
+            }
+            locationCounter = translateStreamed(locationCounter, line);
+            lines++;
+        }
+        streamedLines = lines;
+    }
+
+    // translate disectedInstruction in the bounded second pass, the symbol table is complete
+    private int translateStreamed(int locationCounter, int line) {
+        resolveOperand(disectedInstruction);
+        if (disectedInstruction.type == Type.MRI && disectedInstruction.operand == UNRESOLVED) {
+            throw new RuntimeException("Undefined label : " + symbolTable.getSymbol(disectedInstruction.symbol));
+        }
+
+        locationCounter = translateInstruction(disectedInstruction, locationCounter, sink);
+        if (disectedInstruction.type != Type.PSEUDO || disectedInstruction.operation != ORG) {
+            occupancy.occupy(disectedInstruction.location, line);
+            streamedWords++;
+        }
+        return locationCounter;
+    }
+
+    // is the instruction a macro pseudo instruction or an invocation of a macro?
+    private static boolean isMacro(Instruction instruction) {
+        return instruction.type == Type.PSEUDO && instruction.operation >= MACRO;
+    }
+
+    // handle the macro pseudo instruction or invocation in disectedInstruction, read from the line
+    // return the expansion of an invocation, null for a MACRO line which starts the definition of a macro
+    private ParsedProgram macroLine(CharSequence line) {
+        if (disectedInstruction.operation == MACRO) {
+            if (disectedInstruction.label != SymbolTable.NONE) {
+                throw new RuntimeException("A macro definition can not have a label : " + line);
+            }
+            macros.define(line);
+            return null;
+        } else if (disectedInstruction.operation == ENDM) {
+            throw new RuntimeException("ENDM without MACRO");
+        }
+
+        ParsedProgram expansion = expandMacro(disectedInstruction.symbol, disectedInstruction.arguments, 0);
+        checkInvocationLabel(disectedInstruction.label, disectedInstruction.symbol, expansion);
+        return expansion;
+    }
+
+    // the disected lines of an invocation of a macro, with locations relative to the invocation
+    // the lines are disected for the first invocation with a list of arguments and reused by the later ones
+    // the bodies of macros may invoke macros, but not define them nor change the location with ORG or END
+    private ParsedProgram expandMacro(int macro, List<String> arguments, int depth) {
+        ParsedProgram expansion = macros.getExpansion(macro, arguments);
+        if (expansion != null) {
+            return expansion;
+        }
+        if (depth == MAX_MACRO_DEPTH) {
+            throw new RuntimeException("Macros nested too deeply : " + macros.getName(macro));
+        }
+
+        // every line of the body is a word, so the locations are the indexes of the lines
+        List<String> body = macros.expand(macro, arguments);
+        expansion = new ParsedProgram(body.size(), false);
+        Instruction instruction = new Instruction();
+        for (String line : body) {
+            int location = expansion.size();
+            disectInstruction(line, location, instruction);
+            if (instruction.type == Type.PSEUDO && instruction.operation == INVOKE) {
+                ParsedProgram invoked = expandMacro(instruction.symbol, instruction.arguments, depth + 1);
+                checkInvocationLabel(instruction.label, instruction.symbol, invoked);
+                expansion.append(invoked, invoked.size(), location, 0, null);
+                if (instruction.label != SymbolTable.NONE) {
+                    expansion.setLabel(location, instruction.label);
                 }
+            } else if (instruction.type == Type.PSEUDO && instruction.operation != HEX
+                    && instruction.operation != DEC) {
+                throw new RuntimeException("ORG, END and macro definitions can not be used in a macro : "
+                        + macros.getName(macro));
+            } else {
+                expansion.add(instruction);
             }
         }
+        macros.putExpansion(macro, arguments, expansion);
+        return expansion;
     }
 
-    // does this instruction contain a label as its address?
-    private boolean hasLabel(String instruction) {
-        instruction = instruction.trim(); 
+    // the label of an invocation is defined by the first line of the expansion, which must not have one
+    private void checkInvocationLabel(int label, int macro, ParsedProgram expansion) {
+        if (label != SymbolTable.NONE && (expansion.size() == 0 || expansion.getLabel(0) != SymbolTable.NONE)) {
+            throw new RuntimeException("The first line of macro " + macros.getName(macro) + " can not take the label "
+                    + symbolTable.getSymbol(label));
+        }
+    }
+
+    // define the labels of an expansion of a macro at the location of the invocation, and the label of the
+    // invocation itself at its first line
+    private void defineLabels(ParsedProgram expansion, int label, int locationCounter) {
+        if (label != SymbolTable.NONE) {
+            symbolTable.setAddress(label, locationCounter);
+        }
+        for (int i = 0; i < expansion.size(); i++) {
+            if (expansion.getLabel(i) != SymbolTable.NONE) {
+                symbolTable.setAddress(expansion.getLabel(i), locationCounter + expansion.getLocation(i));
+            }
+        }
+    }
 
-        // the labels are required to be of length 3 followed by a comma
-        if (instruction.length() < 3 || instruction.length() == 3 || instruction.charAt(3) != ',') {
-            return false;
+    // run the first pass on parts of the program in parallel
+    // every part is disected on the common ForkJoinPool with locations relative to the start of the part up
+    // to its first ORG, then the absolute locations are found as a prefix sum over the parts in order, and
+    // the labels are published to the symbol table
+    // return false, with nothing disected, if the program defines macros; the macros must be defined in order,
+    // so such a program is left to the sequential first pass
+    boolean parallelFirstPass(List<? extends Iterable<? extends CharSequence>> parts) {
+        List<ForkJoinTask<LineChunk>> chunks = new ArrayList<>();
+        for (Iterable<? extends CharSequence> part : parts) {
+            chunks.add(ForkJoinPool.commonPool().submit(() -> disectChunk(part)));
         }
 
+        parsedProgram.clear();
+        int locationCounter = 0;
+        int lineOffset = 0;
+        for (ForkJoinTask<LineChunk> task : chunks) {
+            LineChunk chunk = task.join();
+            if (chunk.macros) {
+                for (ForkJoinTask<LineChunk> remaining : chunks) {
+                    remaining.cancel(false);
+                }
+                symbolTable.clear();
+                parsedProgram.clear();
+                return false;
+            }
+
+            // map the symbols of the chunk to the symbol table, fix up the relative locations and publish the
+            // labels of the chunk
+            int[] ids = new int[chunk.symbols.size()];
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = symbolTable.intern(chunk.symbols.getSymbol(id));
+            }
+            int from = parsedProgram.size();
+            parsedProgram.append(chunk.lines, chunk.relativeLines, locationCounter, lineOffset, ids);
+            for (int i = from; i < parsedProgram.size(); i++) {
+                int label = parsedProgram.getLabel(i);
+                if (label != SymbolTable.NONE) {
+                    symbolTable.setAddress(label, parsedProgram.getLocation(i));
+                }
+            }
+
+            locationCounter = chunk.hasOrg ? chunk.endLocation : locationCounter + chunk.endLocation;
+            lineOffset += chunk.lineCount;
+
+            // the lines after END are not part of the program
+            if (chunk.ended) {
+                for (ForkJoinTask<LineChunk> remaining : chunks) {
+                    remaining.cancel(false);
+                }
+                break;
+            }
+        }
         return true;
     }
 
-    // assumes a label exists
-    private String getLabel(String instruction) {
-        return instruction.substring(0, 3);
+    // disect a part of the program for the parallel first pass
+    private LineChunk disectChunk(Iterable<? extends CharSequence> part) {
+        LineChunk chunk = new LineChunk();
+        Instruction instruction = new Instruction();
+
+        int locationCounter = 0;
+        int position = 0;
+        for (CharSequence line : part) {
+            disectInstruction(line, locationCounter, instruction, chunk.symbols);
+            instruction.line = lineNumber(line, ++position);
+            if (isMacro(instruction)) {
+                chunk.macros = true;
+                break;
+            }
+
+            int nextLocation = getNextLocation(instruction, locationCounter);
+            if (nextLocation == -1) {
+                chunk.ended = true;
+                break;
+            }
+
+            chunk.lines.add(instruction);
+            if (!chunk.hasOrg && instruction.type == Type.PSEUDO && instruction.operation == ORG) {
+                // the ORG line itself is still at a relative location
+                chunk.hasOrg = true;
+                chunk.relativeLines = chunk.lines.size();
+            }
+            locationCounter = nextLocation;
+        }
+
+        if (!chunk.hasOrg) {
+            chunk.relativeLines = chunk.lines.size();
+        }
+        chunk.endLocation = locationCounter;
+        chunk.lineCount = part instanceof MappedSource ? ((MappedSource) part).countLineBreaks() : position;
+        return chunk;
+    }
+
+    // the lines of a part of the program as disected by the parallel first pass
+    private static final class LineChunk {
+        // the disected lines, the locations of the first relativeLines lines are relative to the chunk
+        final ParsedProgram lines = new ParsedProgram(MIN_CHUNK_SIZE, false);
+        int relativeLines;
+
+        // the symbols of the chunk, the ids in lines are ids in this table until the chunk is appended
+        final SymbolTable symbols = new SymbolTable();
+
+        // the location counter after the last line, relative to the chunk if it has no ORG
+        int endLocation;
+        boolean hasOrg;
+
+        // the number of source lines of the part, the lines are numbered from the start of the part
+        int lineCount;
+
+        // the chunk contains the END of the program
+        boolean ended;
+
+        // the chunk defines a macro, it is not disected any further
+        boolean macros;
+    }
+
+    // split the program into parts for the parallel first pass, null if it can not be split
+    private static List<? extends Iterable<? extends CharSequence>> split(Iterable<? extends CharSequence> program) {
+        int parallelism = 4 * ForkJoinPool.getCommonPoolParallelism();
+
+        if (program instanceof MappedSource) {
+            MappedSource source = (MappedSource) program;
+            return source.split(Math.min(parallelism, source.byteSize() / MIN_CHUNK_BYTES + 1));
+        } else if (program instanceof List && program instanceof RandomAccess) {
+            List<? extends CharSequence> lines = (List<? extends CharSequence>) program;
+            int chunkSize = Math.max(MIN_CHUNK_SIZE, lines.size() / parallelism + 1);
+
+            List<List<? extends CharSequence>> parts = new ArrayList<>();
+            for (int from = 0; from < lines.size(); from += chunkSize) {
+                parts.add(lines.subList(from, Math.min(from + chunkSize, lines.size())));
+            }
+            return parts;
+        }
+        return null;
+    }
+
+    // the location of the instruction following the specified one, -1 after END
+    private static int getNextLocation(Instruction instruction, int locationCounter) {
+        if (instruction.type == Type.PSEUDO) {
+            if (instruction.operation == ORG) {
+                return instruction.operand;
+            } else if (instruction.operation == END) {
+                return -1;
+            }
+        }
+        return locationCounter + 1;
+    }
+
+    // resolve the operand of an MRI to the address of its label, UNRESOLVED if it is not defined (yet)
+    private void resolveOperand(Instruction instruction) {
+        if (instruction.type == Type.MRI) {
+            int address = instruction.symbol == SymbolTable.NONE ? SymbolTable.UNDEFINED
+                    : symbolTable.getAddress(instruction.symbol);
+            instruction.operand = address == SymbolTable.UNDEFINED ? UNRESOLVED : address;
+        }
+    }
+
+    // assemble the program in a single pass
+    // MRIs referring to labels that are not defined yet are buffered without their address and chained
+    // per label as fixups, which are patched when the label gets defined
+    // the words are written to the sink as soon as no word before them waits for a label
+    void onePass(Iterable<? extends CharSequence> program) {
+        if (words == null) {
+            wordLocations = new int[64];
+            words = new int[64];
+            waiting = new boolean[64];
+            fixups = new int[64];
+        }
+        Arrays.fill(fixups, 0);
+        wordCount = 0;
+        flushedCount = 0;
+
+        int locationCounter = 0;
+        int position = 0;
+        int lines = 0;
+        streamedWords = 0;
+        for (CharSequence instruction : program) {
+            // -1 denotes that END instruction has been encountered
+            if (locationCounter == -1) break;
+
+            position++;
+            if (macros.isDefining()) {
+                macros.addLine(instruction);
+                continue;
+            }
+
+            int line = lineNumber(instruction, position);
+            if (traceLines) {
+                disectTraced(instruction, locationCounter, line);
+            } else {
+                disectInstruction(instruction, locationCounter, disectedInstruction);
+            }
+
+            // the lines of an expansion are assembled as if they had been written instead of the invocation
+            if (isMacro(disectedInstruction)) {
+                int label = disectedInstruction.label;
+                ParsedProgram expansion = macroLine(instruction);
+                int invocation = locationCounter;
+                for (int i = 0; expansion != null && i < expansion.size(); i++) {
+                    expansion.get(i, disectedInstruction);
+                    disectedInstruction.location += invocation;
+                    if (i == 0 && label != SymbolTable.NONE) {
+                        disectedInstruction.label = label;
+                    }
+                    locationCounter = onePassInstruction(locationCounter, line);
+                    lines++;
+                }
+                continue;
+            }
+            locationCounter = onePassInstruction(locationCounter, line);
+            lines++;
+        }
+
+        // the lines up to END, as in parsedProgram
+        streamedLines = locationCounter == -1 ? lines - 1 : lines;
+
+        List<String> undefined = new ArrayList<>();
+        for (int symbol = 0; symbol < fixups.length; symbol++) {
+            if (fixups[symbol] != 0) {
+                undefined.add(symbolTable.getSymbol(symbol));
+            }
+        }
+        if (!undefined.isEmpty()) {
+            throw new RuntimeException("Undefined labels : " + undefined);
+        }
+    }
+
+    // assemble disectedInstruction in the single pass, patching the words waiting for its label and
+    // recording a fixup if its operand is not defined yet
+    // a label can only be defined once
+    // return the location of the next instruction, -1 after END
+    private int onePassInstruction(int locationCounter, int line) {
+        int label = disectedInstruction.label;
+        if (label != SymbolTable.NONE) {
+            // the uses before a redefinition already have the first address, the other modes take the last
+            if (symbolTable.getAddress(label) != SymbolTable.UNDEFINED) {
+                throw new RuntimeException("Label defined twice : " + symbolTable.getSymbol(label));
+            }
+            symbolTable.setAddress(label, locationCounter);
+
+            // patch the words waiting for this label, following the chain from the last one
+            if (label < fixups.length && fixups[label] != 0) {
+                for (int link = fixups[label]; link != 0; ) {
+                    int index = link - 1;
+                    link = getFixupLink(words[index]);
+                    words[index] = words[index] & 0xF000 | locationCounter & 0xFFF;
+                    waiting[index] = false;
+                }
+                fixups[label] = 0;
+                flushWords();
+            }
+        }
+
+        resolveOperand(disectedInstruction);
+        boolean unresolved = disectedInstruction.type == Type.MRI && disectedInstruction.operand == UNRESOLVED;
+        if (unresolved) {
+            disectedInstruction.operand = 0;
+        }
+
+        int wordIndex = wordCount;
+        locationCounter = translateInstruction(disectedInstruction, locationCounter, wordBuffer);
+        if (wordCount > wordIndex) {
+            occupancy.occupy(disectedInstruction.location, line);
+            streamedWords++;
+        }
+
+        if (unresolved) {
+            int symbol = disectedInstruction.symbol;
+            if (symbol >= fixups.length) {
+                fixups = Arrays.copyOf(fixups, Math.max(symbol + 1, 2 * fixups.length));
+            }
+            if (wordIndex >= MAX_FIXUP_LINK) {
+                throw new IllegalStateException("Too many words waiting for labels : " + wordIndex);
+            }
+            words[wordIndex] = setFixupLink(words[wordIndex], fixups[symbol]);
+            fixups[symbol] = wordIndex + 1;
+            waiting[wordIndex] = true;
+        }
+        flushWords();
+        return locationCounter;
+    }
+
+    // a word waiting for a label links to the previous word waiting for the same label: the index of that
+    // word plus 1 (0 at the end of the chain) is kept in the address bits of the word and above its 16 bits
+    private static int setFixupLink(int word, int link) {
+        return word & 0xF000 | link & 0xFFF | (link >>> 12) << 16;
     }
 
-    // assumes instruction has no label (operations are of length 3)
-    private String getOperation(String instruction) {
-        instruction = instruction.trim();
-        return instruction.substring(0, 3);
+    // the link of a word waiting for a label
+    private static int getFixupLink(int word) {
+        return word & 0xFFF | (word >>> 16) << 12;
     }
 
-    // assumes instruction is ORG (as only called in that case)
-    // all parts divided by a space
-    private String getOrgOperand(String instruction) {
-        String[] instructionInParts = instruction.split(" ");
-        return instructionInParts[1];
+    // write the words up to the first one waiting for a label to the sink
+    private void flushWords() {
+        while (flushedCount < wordCount && !waiting[flushedCount]) {
+            sink.write(wordLocations[flushedCount], words[flushedCount]);
+            flushedCount++;
+        }
+
+        // no fixup refers to the buffer anymore, so it can be reused from the start
+        if (flushedCount == wordCount) {
+            flushedCount = 0;
+            wordCount = 0;
+        }
     }
 
     // run the second pass of the two pass assembler
-    // write the machine code to outputCode
-    private void secondPass(List<String> program) {
+    // translate the lines disected by the first pass and write the machine code to the sink
+    // the occupancy is recorded again, as the second pass may be run more than once for the same lines
+    void secondPass() {
+        occupancy.clear();
+        translateLines(0, parsedProgram.size(), disectedInstruction, sink, occupancy);
+    }
+
+    // run the second pass on chunks of lines in parallel
+    // the symbol table is complete and the location of every line is known after the first pass, so the
+    // chunks are independent; they are translated on the common ForkJoinPool and written to the sink in order
+    void parallelSecondPass() {
+        occupancy.clear();
+        int lines = parsedProgram.size();
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, lines / (4 * ForkJoinPool.getCommonPoolParallelism()) + 1);
+
+        List<ForkJoinTask<WordChunk>> chunks = new ArrayList<>();
+        for (int from = 0; from < lines; from += chunkSize) {
+            int start = from;
+            int end = Math.min(from + chunkSize, lines);
+            chunks.add(ForkJoinPool.commonPool().submit(() -> {
+                WordChunk chunk = new WordChunk(start, end);
+                translateLines(start, end, new Instruction(), chunk, null);
+                return chunk;
+            }));
+        }
+
+        // the occupancy is recorded in order, while the chunks are written
+        for (ForkJoinTask<WordChunk> task : chunks) {
+            WordChunk chunk = task.join();
+            chunk.writeTo(sink);
+            occupyLines(chunk.from, chunk.to, occupancy);
+        }
+    }
+
+    // translate the lines [from, to) of parsedProgram and write the machine code to output
+    // the instruction record is used for every line, so parallel callers each need their own
+    // the words are recorded in the occupancy map unless it is null
+    private void translateLines(int from, int to, Instruction instruction, OutputSink output,
+            OccupancyMap occupancy) {
         int locationCounter = 0;
 
-        for (String instruction : program) {
-            // -1 denotes that END instruction has been encountered
-            if (locationCounter == -1) return;
+        for (int i = from; i < to; i++) {
+            // load the line into the reusable instruction record
+            parsedProgram.get(i, instruction);
+            resolveOperand(instruction);
 
-            // disect the string into different tokens
-            Map<String, String> instructionTokens = disectInstruction(instruction, locationCounter);
+            if (instruction.type == Type.MRI && instruction.operand == UNRESOLVED) {
+                throw new RuntimeException("Undefined label : " + symbolTable.getSymbol(instruction.symbol));
+            }
 
             // translate the instruction and write to output, simultaneously updating locationCounter
-            locationCounter = translateInstruction(instructionTokens, locationCounter);
+            locationCounter = translateInstruction(instruction, locationCounter, output);
+            if (occupancy != null && (instruction.type != Type.PSEUDO || instruction.operation != ORG)) {
+                occupancy.occupy(instruction.location, instruction.line);
+            }
+        }
+    }
+
+    // record the words of the lines [from, to) of parsedProgram in an occupancy map
+    private void occupyLines(int from, int to, OccupancyMap occupancy) {
+        for (int i = from; i < to; i++) {
+            if (parsedProgram.isWord(i)) {
+                occupancy.occupy(parsedProgram.getLocation(i), parsedProgram.getLine(i));
+            }
+        }
+    }
+
+    // the words translated from a chunk of lines, kept until the chunks before it are written
+    private static final class WordChunk implements OutputSink {
+        // the lines [from, to) of parsedProgram translated by the chunk
+        final int from;
+        final int to;
+
+        private final int[] locations;
+        private final int[] words;
+        private int size;
+
+        WordChunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+            locations = new int[to - from];
+            words = new int[to - from];
+        }
+
+        @Override
+        public void write(int address, int word) {
+            locations[size] = address;
+            words[size] = word;
+            size++;
+        }
+
+        void writeTo(OutputSink output) {
+            for (int i = 0; i < size; i++) {
+                output.write(locations[i], words[i]);
+            }
         }
     }
 
     // translate instructions and write to output
     // returns the location counter for the next instruction
-    private int translateInstruction(Map<String, String> instructionTokens, int locationCounter) {
-        
-        String type = instructionTokens.get("type");
+    private int translateInstruction(Instruction instruction, int locationCounter, OutputSink output) {
 
-        switch (type) {
-            case "MRI": //MRI -> Memory Reference Insructions
-                return translateMRI(instructionTokens, locationCounter);
+        switch (instruction.type) {
+            case MRI: //MRI -> Memory Reference Insructions
+                return translateMRI(instruction, locationCounter, output);
 
-            case "NON_MRI": // NON_MRI -> Register, IO and other instructions
-                return translateNonMRI(instructionTokens, locationCounter);
+            case NON_MRI: // NON_MRI -> Register, IO and other instructions
+                return translateNonMRI(instruction, locationCounter, output);
 
-            case "PSEUDO":  // Assembler directives (pseudo instructions)
-                return translatePseudo(instructionTokens, locationCounter);
+            case PSEUDO:  // Assembler directives (pseudo instructions)
+                return translatePseudo(instruction, locationCounter, output);
 
             default:    // unreachable as program is assumed to be valid
                 return -1;
@@ -185,18 +1325,12 @@ public class Assembler {
 
     // translate MRI Instructions
     // return address of next location
-    private int translateMRI(Map<String, String> instructionTokens, int locationCounter) {
-        StringBuilder machineCode = new StringBuilder();
-
-        // add to machineCode part by part
-        machineCode.append(instructionTokens.get("location") + " ");
-        machineCode.append(instructionTokens.get("addressingMode"));
-        machineCode.append(memoryInstructionTable.get(instructionTokens.get("operation")));
-        machineCode.append(getBinaryString(
-                addressSymbolTable.get(instructionTokens.get("operand")), 12));
+    private int translateMRI(Instruction instruction, int locationCounter, OutputSink output) {
+        // the addressing mode, the opcode and the address of the operand
+        int word = (instruction.indirect ? 1 << 15 : 0) | instruction.operation << 12 | instruction.operand & 0xFFF;
 
         // write to output
-        outputCode.add(machineCode.toString());
+        output.write(instruction.location, word);
 
         // the next instruction is at the next location
         return locationCounter + 1;
@@ -204,15 +1338,9 @@ public class Assembler {
 
     // translate non MRI instructions
     // return address of next location
-    private int translateNonMRI(Map<String, String> instructionTokens, int locationCounter) {
-        StringBuilder machineCode = new StringBuilder();
-
-        // add to machineCode part by part
-        machineCode.append(instructionTokens.get("location") + " ");
-        machineCode.append(nonMemoryInstructionTable.get(instructionTokens.get("operation")));
-
+    private int translateNonMRI(Instruction instruction, int locationCounter, OutputSink output) {
         // write to output
-        outputCode.add(machineCode.toString());
+        output.write(instruction.location, instruction.operation);
 
         // the next instruction is at the next location
         return locationCounter + 1;
@@ -221,143 +1349,402 @@ public class Assembler {
     // translate pseudo instructions
     // update locationCounter in case of ORG and END
     // return address of next location
-    private int translatePseudo(Map<String, String> instructionTokens, int locationCounter) {
-        String operation = instructionTokens.get("operation");
-
-        if (operation.equals("ORG")) {
-            return Integer.parseInt(instructionTokens.get("operand"));
-        } else if (operation.equals("END")) {
-            return -1;
-        } else if (operation.equals("DEC")) {
-            String machineCode = instructionTokens.get("location") + " " +
-                    getBinaryString(Integer.parseInt(instructionTokens.get("operand")), 16);
-            outputCode.add(machineCode.toString());
-            return locationCounter + 1;
-        } else if (operation.equals("HEX")) {
-            String machineCode = instructionTokens.get("location") + " " +
-                    getBinaryString(Integer.parseInt(instructionTokens.get("operand"), 16), 16);
-            outputCode.add(machineCode.toString());
-            return locationCounter + 1;
-        } else {
-            // should not happen
-            throw new RuntimeException("Invalid instruction");
+    private int translatePseudo(Instruction instruction, int locationCounter, OutputSink output) {
+        switch (instruction.operation) {
+            case ORG:
+                return instruction.operand;
+
+            case END:
+                return -1;
+
+            case DEC:
+            case HEX:
+                output.write(instruction.location, instruction.operand & 0xFFFF);
+                return locationCounter + 1;
+
+            default:
+                // should not happen
+                throw new RuntimeException("Invalid instruction");
         }
     }
 
+    // buffer a machine word of the one pass assembler
+    // the words are kept until the forward references before them are patched
+    private void bufferWord(int location, int word) {
+        if (wordCount == words.length) {
+            wordLocations = Arrays.copyOf(wordLocations, 2 * wordCount);
+            words = Arrays.copyOf(words, 2 * wordCount);
+            waiting = Arrays.copyOf(waiting, 2 * wordCount);
+        }
+        wordLocations[wordCount] = location;
+        words[wordCount] = word;
+        waiting[wordCount] = false;
+        wordCount++;
+    }
+
     // disect the instruction into parts
-    // return the instruction tokens as a Map with these fields and corresponding values
-    // valid fields are
+    // the parts are stored in the (reused) instruction record, with these fields
     // a.) location -> the memory address the instruction will be at
-    // b.) operation -> the operation part of the instruction
+    // b.) operation -> the opcode of an MRI, the machine code of a non MRI or the pseudo instruction
     // c.) type -> if the instruction is MRI, NON_MRI or PSEUDO
-    // d.) operand -> the operand of the instruction (if applicable)
-    // e.) addressingMode -> the addressingMode of the instruction (direct - 0, indirect - 1)
-    private Map<String, String> disectInstruction(String instruction, int locationCounter) {
-        Map<String, String> disectedInstruction = new HashMap<>();
+    // d.) operand -> the address (MRI) or the value (ORG, DEC, HEX) of the operand (if applicable),
+    //     UNRESOLVED until the label of an MRI operand is resolved
+    // e.) indirect -> the addressingMode of the instruction (direct - false, indirect - true)
+    // f.) symbol -> the id of the label of the operand of an MRI (SymbolTable.NONE if there is none)
+    // g.) label -> the id of the label defined by the instruction (SymbolTable.NONE if there is none)
+    // h.) arguments -> the arguments of an invocation of a macro (null otherwise), whose symbol is the id of
+    //     the macro in the MacroTable
+    // the instruction may be a String or a view of the source bytes, it is not kept
+    void disectInstruction(CharSequence instruction, int locationCounter, Instruction disected) {
+        disectInstruction(instruction, locationCounter, disected, symbolTable);
+    }
+
+    // the number of a line of the source, from 1: the number of the line in the file for a line read from a
+    // MappedSource, which skips blank lines, the position of the line otherwise
+    private static int lineNumber(CharSequence instruction, int position) {
+        return instruction instanceof MappedSource.Line ? ((MappedSource.Line) instruction).getNumber() : position;
+    }
+
+    // disect the instruction into disectedInstruction, recording a flight recorder line event if it is slow
+    private void disectTraced(CharSequence instruction, int locationCounter, int line) {
+        AssemblerEvents.Line event = new AssemblerEvents.Line();
+        event.begin();
+        disectInstruction(instruction, locationCounter, disectedInstruction);
+        event.end();
+        if (event.shouldCommit()) {
+            event.line = line;
+            event.text = instruction.toString();
+            event.commit();
+        }
+    }
 
-        instruction = instruction.trim(); 
+    // disect the instruction with the labels interned in the specified symbol table
+    private void disectInstruction(CharSequence instruction, int locationCounter, Instruction disected,
+            SymbolTable symbols) {
+        // the instruction without leading and trailing blanks
+        int start = tokenStart(instruction, 0);
+        int end = instruction.length();
+        while (end > start && instruction.charAt(end - 1) <= ' ') {
+            end--;
+        }
 
-        if (instruction.length() < 3) {
-            new RuntimeException("Invalid Instruction");
+        // every mnemonic has three letters, only the name of a macro may be shorter
+        if (end - start < 3 && macros.find(instruction, start, end) == SymbolTable.NONE) {
+            throw new RuntimeException("Invalid Instruction");
         }
 
         // the location of the instruction in memory
-        if (instruction.length() == 3 || instruction.charAt(3) != ',') {
-            disectedInstruction.put("location", Integer.toBinaryString(locationCounter));
-        } else {
-            String label = instruction.substring(0, 3);
-            disectedInstruction.put("location", Integer.toBinaryString(addressSymbolTable.get(label)));
-            instruction = instruction.substring(5, instruction.length());
+        disected.location = locationCounter;
+        disected.label = SymbolTable.NONE;
+        int labelEnd = start;
+        while (labelEnd < end && instruction.charAt(labelEnd) > ' ' && instruction.charAt(labelEnd) != ',') {
+            labelEnd++;
+        }
+        if (labelEnd > start && labelEnd < end && instruction.charAt(labelEnd) == ',') {
+            // a label is the first word of the line followed by a comma, it may be of any length
+            disected.label = symbols.intern(instruction, start, labelEnd);
+            start = tokenStart(instruction, labelEnd + 1);
         }
 
-        // split the instruction about the spaces
-        String[] instructionParts = instruction.split(" ");
+        // the instruction is divided into parts by spaces, find the first three of them
+        int opcodeEnd = tokenEnd(instruction, start);
+        int operandStart = tokenStart(instruction, opcodeEnd);
+        int operandEnd = tokenEnd(instruction, operandStart);
+        int modeStart = tokenStart(instruction, operandEnd);
+        int modeEnd = tokenEnd(instruction, modeStart);
 
-        // the operation (op-code) of the instruction
-        String opcode = instructionParts[0];
-        disectedInstruction.put("operation", opcode);
+        boolean hasOperand = operandStart < operandEnd && instruction.charAt(operandStart) != '/';
 
-        // the type of the instruction
-        if (memoryInstructionTable.containsKey(opcode)) {
-            disectedInstruction.put("type", "MRI");
-        } else if (nonMemoryInstructionTable.containsKey(opcode)) {
-            disectedInstruction.put("type", "NON_MRI");
-        } else if (pseudoInstructionSet.contains(opcode)) {
-            disectedInstruction.put("type", "PSEUDO");
-        } else {
-            throw new RuntimeException("Invalid Instruction at opcode : " + opcode);
+        // the operation (op-code) and the type of the instruction
+        int operation = InstructionSet.OPERATIONS.lookup(instruction, start, opcodeEnd);
+        if (operation == OperationTable.NOT_FOUND) {
+            disectMacro(instruction, start, opcodeEnd, operandStart, end, disected);
+            return;
         }
+        disected.type = OperationTable.getType(operation);
+        disected.operation = OperationTable.getOperation(operation);
 
-        // check if there is an operand and if there is store it
-        if (instructionParts.length > 1) {
-            if (!instructionParts[1].startsWith("/")) {
-                disectedInstruction.put("operand", instructionParts[1]);
+        // store the operand if there is one, the labels of MRIs are resolved later
+        disected.operand = 0;
+        disected.symbol = SymbolTable.NONE;
+        if (hasOperand) {
+            if (disected.type == Type.MRI) {
+                disected.symbol = symbols.intern(instruction, operandStart, operandEnd);
+                disected.operand = UNRESOLVED;
+            } else if (disected.type == Type.PSEUDO) {
+                int radix = disected.operation == HEX ? 16 : 10;
+                disected.operand = Integer.parseInt(instruction, operandStart, operandEnd, radix);
             }
         }
 
         // check if Indirect memory addressing mode is specified
-        if (instructionParts.length > 2) {
-            if (!instructionParts[1].startsWith("/") && !instructionParts[2].startsWith("/")) {
-                if (instructionParts[2].equals("I")) {
-                    disectedInstruction.put("addressingMode", "1");
-                } else {
-                    disectedInstruction.put("addressingMode", "0");    
-                }
-            } else {
-                disectedInstruction.put("addressingMode", "0");
-            }
+        disected.indirect = hasOperand && modeEnd - modeStart == 1 && instruction.charAt(modeStart) == 'I';
+    }
+
+    // disect a macro pseudo instruction or an invocation of a macro, whose opcode is not an operation
+    // the symbol of an invocation is the id of the macro, and its arguments are parsed
+    private void disectMacro(CharSequence instruction, int start, int opcodeEnd, int operandStart, int end,
+            Instruction disected) {
+        String opcode = instruction.subSequence(start, opcodeEnd).toString();
+        disected.type = Type.PSEUDO;
+        disected.operand = 0;
+        disected.indirect = false;
+        disected.symbol = SymbolTable.NONE;
+        disected.arguments = null;
+
+        if (opcode.equals(InstructionSet.MACRO)) {
+            disected.operation = MACRO;
+        } else if (opcode.equals(InstructionSet.ENDM)) {
+            disected.operation = ENDM;
         } else {
-            disectedInstruction.put("addressingMode", "0");
+            int macro = macros.find(instruction, start, opcodeEnd);
+            if (macro == SymbolTable.NONE) {
+                throw new RuntimeException("Invalid Instruction at opcode : " + opcode);
+            }
+            disected.operation = INVOKE;
+            disected.symbol = macro;
+            disected.arguments = macros.getArguments(macro, instruction.subSequence(Math.min(operandStart, end), end));
+        }
+    }
+
+    // the pseudo instruction constant for the specified pseudo instruction, which must be one of the table
+    static int getPseudoOperation(String opcode) {
+        switch (opcode) {
+            case "ORG": return ORG;
+            case "END": return END;
+            case "HEX": return HEX;
+            case "DEC": return DEC;
+            default:    throw new IllegalArgumentException("Unknown pseudo instruction : " + opcode);
         }
+    }
 
-        return disectedInstruction;
+    // the index of the first non blank character at or after index
+    private static int tokenStart(CharSequence instruction, int index) {
+        while (index < instruction.length() && instruction.charAt(index) <= ' ') {
+            index++;
+        }
+        return index;
+    }
+
+    // the index just after the token starting at index
+    private static int tokenEnd(CharSequence instruction, int index) {
+        while (index < instruction.length() && instruction.charAt(index) > ' ') {
+            index++;
+        }
+        return index;
     }
 
     // get a (fixed length) binary string for the specified number
     // params: decimal -> the number to convert
     // length -> the length of the binary string
-    private String getBinaryString(int decimal, int length) {
-        // bitwise or (|) with (1 << length) to get binary string of length - (length + 1)
-        // the suffix is the required binary string
-        if (decimal >= 0)
-            return Integer.toBinaryString(1 << length | decimal).substring(1);
+    // only the last (length) bits are used, also for negative numbers
+    String getBinaryString(int decimal, int length) {
+        char[] digits = new char[length];
+        BinaryEncoder.write(decimal, length, digits, 0);
+        return new String(digits);
+    }
+
+    /**
+     * Assemble a source file into an output file. The source is memory mapped and the output is written
+     * as it is produced. If the source does not assemble, the output file is deleted.
+     *
+     * @param source the file to assemble
+     * @param output the file to write the machine code to
+     * @param mode how the file is assembled
+     * @param image if true the memory image is written instead of text
+     * @throws IOException if the source can not be read or the output can not be written
+     */
+    public void assembleFile(Path source, Path output, Mode mode, boolean image) throws IOException {
+        assembleFile(source, output, mode, image, null);
+    }
+
+    /**
+     * Assemble a source file into an output file, unless its output is in the cache. On a hit the output
+     * and the symbol table are taken from the cache, without running any pass; the program can then not
+     * be edited with reassemble nor cross referenced. On a miss the file is assembled and stored in the
+     * cache.
+     *
+     * @param source the file to assemble
+     * @param output the file to write the machine code to
+     * @param mode how the file is assembled
+     * @param image if true the memory image is written instead of text
+     * @param cache the cache, null to always assemble
+     * @throws IOException if the source can not be read or the output or the cache can not be written
+     */
+    void assembleFile(Path source, Path output, Mode mode, boolean image, AssemblyCache cache)
+            throws IOException {
+        String key = null;
+        if (cache != null) {
+            startPhase("cache lookup");
+            key = cache.getKey(source, mode, image);
+            reset();
+            if (cache.load(key, output, symbolTable)) {
+                endPhase();
+                if (stats != null) {
+                    stats.setProgram(mode.name(), 0, 0, countLabels(), true);
+                }
+                return;
+            }
+        }
+
+        // the streaming modes read the file a window at a time, so that it may be larger than a mapping
+        startPhase("map");
+        Iterable<CharSequence> program = mode == Mode.BOUNDED || mode == Mode.ONE_PASS
+                ? MappedSource.lines(source) : new MappedSource(source);
 
-        // in case of negative numbers the bainry string will be of 32 bits, we need only the
-        // last (length) bits
-        return Integer.toBinaryString(decimal).substring(32 - length, 32);
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (image) {
+                MemoryImage memoryImage = new MemoryImage();
+                assemble(program, mode, memoryImage, source.toString());
+                startPhase("write image");
+                memoryImage.writeTo(channel);
+            } else {
+                assemble(program, mode, OutputSink.toChannel(channel), source.toString());
+            }
+        } catch (RuntimeException e) {
+            // do not leave a partial output behind
+            Files.deleteIfExists(output);
+            throw e;
+        }
+
+        // a program with overlaps is not stored, so that its warnings are reported every time
+        if (cache != null && occupancy.size() == 0) {
+            startPhase("cache store");
+            cache.store(key, output, symbolTable);
+        }
+        endPhase();
     }
 
     /**
      * The main method that is the entry point of execution. It reads a file as a command line argument
-     * and then assembles it using an Assembler object. It then packages the output to a txt file for viewing.
+     * and then assembles it using an Assembler object, which streams the output to a txt file for viewing.
+     * The file is memory mapped and its lines are tokenized straight from the mapped bytes.
+     * The options, given before the file, are
+     * --one-pass -> assemble the file in a single pass
+     * --parallel -> assemble the file on all cores
+     * --bounded -> assemble the file in two passes that both read the file, without keeping its lines, so that
+     *              files larger than the heap can be assembled
+     * --image -> write the memory image (4096 big endian 16 bit words) to a.bin instead of a.txt
+     * --batch -> assemble all of the following files, and the .txt files in the following directories,
+     *            concurrently; the output of every file is written next to it (see BatchAssembler)
+     * --daemon -> instead of assembling a file, serve the AssemblerClient on the address that follows
+     *             (a socket path or a loopback port, see AssemblerDaemon); no other option can be given
+     * --xref -> also print the cross reference listing of the labels to the standard output
+     * --cache -> take the output from the cache in the directory that follows if the file was assembled
+     *            before, and store it there otherwise (see AssemblyCache)
+     * --cache-size -> the size limit of the cache in megabytes, 256 by default
+     * --stats -> print the wall time, the throughput and the allocated bytes of every phase, and the size
+     *            of the program, to the standard error (see AssemblyStats)
+     * --stats-json -> the same as a line of JSON
+     * Words placed at an address that an earlier word already took are reported on the standard error, up to
+     * 100 of them.
      * 
-     * @param args The command line arguments. args[0] should specify the file to be compiled.
-     * @throws FileNotFoundException
+     * @param args The command line arguments. The last argument should specify the file to be compiled,
+     *             optionally preceded by options.
+     * @throws IOException if the file can not be read or the output can not be written
      */
-    public static void main(String[] args) throws FileNotFoundException, UnsupportedEncodingException {
+    public static void main(String[] args) throws IOException {
+        Mode mode = Mode.TWO_PASS;
+        boolean image = false;
+        boolean batch = false;
+        boolean daemon = false;
+        boolean xref = false;
+        AssemblyStats stats = null;
+        boolean json = false;
+        Path cacheDirectory = null;
+        long cacheSize = AssemblyCache.DEFAULT_MAX_BYTES;
 
-        // read file
-        String directory = System.getProperty("user.dir");
-        File file = new File(directory + File.separator + args[0]);
-    
-        Scanner in = new Scanner(file);
-       
-        List<String> program = new ArrayList<>();
-        while (in.hasNext()) {
-            program.add(in.nextLine());
+        int argument = 0;
+        for (; argument < args.length && args[argument].startsWith("--"); argument++) {
+            switch (args[argument]) {
+                case "--one-pass":
+                    mode = Mode.ONE_PASS;
+                    break;
+                case "--parallel":
+                    mode = Mode.PARALLEL;
+                    break;
+                case "--bounded":
+                    mode = Mode.BOUNDED;
+                    break;
+                case "--image":
+                    image = true;
+                    break;
+                case "--batch":
+                    batch = true;
+                    break;
+                case "--daemon":
+                    daemon = true;
+                    break;
+                case "--xref":
+                    xref = true;
+                    break;
+                case "--cache":
+                    cacheDirectory = Paths.get(args[++argument]);
+                    break;
+                case "--cache-size":
+                    cacheSize = Long.parseLong(args[++argument]) << 20;
+                    break;
+                case "--stats":
+                    stats = new AssemblyStats();
+                    break;
+                case "--stats-json":
+                    stats = new AssemblyStats();
+                    json = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option : " + args[argument]);
+            }
+        }
+
+        if (xref && (mode == Mode.ONE_PASS || mode == Mode.BOUNDED || batch || daemon || cacheDirectory != null)) {
+            throw new IllegalArgumentException("--xref can only be used when assembling a file in two passes");
+        }
+        if (stats != null && (batch || daemon)) {
+            throw new IllegalArgumentException("--stats can only be used when assembling a single file");
+        }
+        if (daemon && (mode != Mode.TWO_PASS || image || batch || cacheDirectory != null)) {
+            throw new IllegalArgumentException("--daemon takes the mode and the format from every request, "
+                    + "it can not be used with other options");
+        }
+        AssemblyCache cache = cacheDirectory == null ? null : new AssemblyCache(cacheDirectory, cacheSize);
+
+        if (daemon) {
+            AssemblerDaemon.serve(args[argument]);
+            return;
         }
 
-        // pass into an assembler object
-        Assembler assembler = new Assembler(program);
+        if (batch) {
+            List<Path> sources = new ArrayList<>();
+            for (; argument < args.length; argument++) {
+                sources.add(Paths.get(args[argument]));
+            }
+            if (BatchAssembler.assemble(sources, mode, image, cache) > 0) {
+                System.exit(1);
+            }
+            return;
+        }
 
-        // get the output from the assembler object
-        List<String> output = assembler.getOutput();
+        // read file
+        String directory = System.getProperty("user.dir");
+        File file = new File(directory + File.separator + args[argument]);
 
-        // package into a file
-        PrintWriter writer = new PrintWriter("a.txt", "UTF-8");
-        for (String instruction : output) {
-            writer.println(instruction);
-        }   
-        writer.close();
+        // the output is written into a file as it is produced
+        Assembler assembler = new Assembler();
+        assembler.setStats(stats);
+        assembler.assembleFile(file.toPath(), Paths.get(image ? "a.bin" : "a.txt"), mode, image, cache);
+        if (stats != null) {
+            if (json) {
+                stats.writeJson(System.err);
+            } else {
+                stats.writeText(System.err);
+            }
+        }
+        for (String warning : assembler.getOverlapWarnings()) {
+            System.err.println(warning);
+        }
+        if (xref) {
+            assembler.writeCrossReference(System.out);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,176 @@
+/**************************************************************************************************
+ * Compilation: javac AssemblerBenchmark.java
+ * Execution: java -Xmx4g AssemblerBenchmark [lines ...]
+ * Dependencies: Assembler.java ProgramGenerator.java
+ *
+ * A micro benchmark suite for the two pass assembler. Every stage of the pipeline (the Assembler
+ * constructor on a list and on a mapped file, the parallel and one pass modes, firstPass, secondPass,
+ * disectInstruction and getBinaryString) is measured separately over programs of 1K, 100K and 10M lines made
+ * by ProgramGenerator, unless other sizes are given as arguments. For every stage the throughput (ops/sec,
+ * one op is one sweep over the program) and the allocation rate of the benchmark thread (MB/sec and
+ * bytes/op, the same figures the JMH gc profiler reports) are printed. Allocations of the worker threads of
+ * the parallel mode are not included. ScalingBenchmark sweeps the program size instead.
+ * The 10M line program needs a heap of a few gigabytes.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class AssemblerBenchmark {
+
+    // default program sizes in lines
+    private static final int[] DEFAULT_SIZES = {1_000, 100_000, 10_000_000};
+
+    // the time spent on warm up and measurement of every benchmark
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASUREMENT_NANOS = 5_000_000_000L;
+
+    // a benchmarked operation, one call is one sweep over the program
+    private interface Operation {
+        long run();
+    }
+
+    // keeps the results alive so that the JIT can not eliminate the benchmarked code
+    private static volatile long sink;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // the locations the second pass would give to the lines of the program, -1 after END
+    private static int[] locations(List<String> program) {
+        int[] locations = new int[program.size()];
+        int locationCounter = 0;
+
+        for (int i = 0; i < locations.length; i++) {
+            String instruction = program.get(i).trim();
+            locations[i] = locationCounter;
+
+            if (locationCounter == -1) {
+                continue;
+            } else if (instruction.startsWith("ORG")) {
+                locationCounter = Integer.parseInt(instruction.split(" ")[1]);
+            } else if (instruction.startsWith("END")) {
+                locationCounter = -1;
+            } else {
+                locationCounter++;
+            }
+        }
+
+        return locations;
+    }
+
+    // warm up and measure an operation, then print its throughput and allocation rate
+    private static void measure(String name, int lines, Operation operation) {
+        long deadline = System.nanoTime() + WARMUP_NANOS;
+        do {
+            sink += operation.run();
+        } while (System.nanoTime() < deadline);
+
+        long threadId = Thread.currentThread().getId();
+        long ops = 0;
+        long startBytes = THREAD_BEAN.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        deadline = start + MEASUREMENT_NANOS;
+        do {
+            sink += operation.run();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREAD_BEAN.getThreadAllocatedBytes(threadId) - startBytes;
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-20s %10d %14.3f %14.0f %14.1f %16.0f%n", name, lines, ops / seconds,
+                ops * (double) lines / seconds, allocated / seconds / (1 << 20), (double) allocated / ops);
+    }
+
+    // run all of the benchmarks on a program of the specified size
+    private static void benchmark(int lines) throws IOException {
+        List<String> program = new ProgramGenerator().generate(lines);
+        int[] locations = locations(program);
+        Assembler assembler = new Assembler(program);
+
+        measure("constructor", lines, () -> new Assembler(program).getOutput().size());
+
+        // one assembler reused for every program, as in a batch
+        Assembler reused = new Assembler();
+        measure("reusedAssembler", lines, () -> reused.assemble(program).size());
+
+        // a line inserted into the middle of the program and deleted again, without moving any label
+        Assembler editor = new Assembler();
+        editor.assemble(program);
+        int middle = program.size() / 2;
+        List<String> insertion = List.of("CLA");
+        measure("reassemble", lines, () -> {
+            editor.reassemble(middle, middle, insertion);
+            return editor.reassemble(middle, middle + 1, List.of()).size();
+        });
+
+        // the same program read from a memory mapped file
+        Path file = Files.createTempFile("benchmark", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, program, StandardCharsets.ISO_8859_1);
+        MappedSource source = new MappedSource(file);
+        measure("mappedFile", lines, () -> new Assembler(source, Assembler.Mode.TWO_PASS).getOutput().size());
+
+        measure("parallel", lines, () -> new Assembler(program, Assembler.Mode.PARALLEL).getOutput().size());
+
+        measure("onePass", lines, () -> new Assembler(program, Assembler.Mode.ONE_PASS).getOutput().size());
+
+        measure("firstPass", lines, () -> {
+            assembler.firstPass(program);
+            return assembler.symbolTable.size();
+        });
+
+        measure("secondPass", lines, () -> {
+            assembler.outputCode.clear();
+            assembler.secondPass();
+            return assembler.outputCode.size();
+        });
+
+        measure("disectInstruction", lines, () -> {
+            long result = 0;
+            Assembler.Instruction instruction = new Assembler.Instruction();
+            for (int i = 0; i < locations.length && locations[i] != -1; i++) {
+                assembler.disectInstruction(program.get(i), locations[i], instruction);
+                result += instruction.operand;
+            }
+            return result;
+        });
+
+        measure("getBinaryString", lines, () -> {
+            long result = 0;
+            for (int i = 0; i < lines; i++) {
+                result += assembler.getBinaryString(i & 0xFFF, 12).length();
+                result += assembler.getBinaryString(i - 32768, 16).length();
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Run the benchmark suite. The program sizes (in lines) can be given as arguments, otherwise
+     * 1K, 100K and 10M line programs are used.
+     *
+     * @param args the program sizes to benchmark
+     * @throws IOException if the temporary program files can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i].replace("_", ""));
+            }
+        }
+
+        System.out.printf("%-20s %10s %14s %14s %14s %16s%n", "Benchmark", "Lines", "ops/s", "lines/s",
+                "alloc MB/s", "alloc B/op");
+        for (int lines : sizes) {
+            benchmark(lines);
+        }
+    }
+}
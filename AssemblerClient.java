@@ -0,0 +1,130 @@
+/**************************************************************************************************
+ * Compilation: javac AssemblerClient.java
+ * Execution: java AssemblerClient address [--one-pass | --parallel | --bounded] [--image] fileName.txt
+ * Dependencies: AssemblerDaemon.java
+ *
+ * The client of the AssemblerDaemon, a drop in replacement for java Assembler: it takes the options
+ * --one-pass, --parallel, --bounded and --image of the assembler and a file and writes the same a.txt (or
+ * a.bin), but the program is assembled by the daemon listening on the address (a socket path or a loopback
+ * port). The other options of the assembler are not supported. The client itself only sends the file and
+ * copies back the response, so it starts quickly. The overlap warnings of the program are printed to the
+ * standard error, as the assembler prints them.
+ * **************************************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public final class AssemblerClient {
+
+    private AssemblerClient() {
+    }
+
+    /**
+     * Send a file to the daemon and write the machine code it returns into a.txt, or a.bin with --image.
+     * The warnings of the daemon are printed to the standard error. If the daemon can not assemble the file
+     * the error is printed and the exit status is 1.
+     *
+     * @param args the address of the daemon, the options as for Assembler and the file to assemble
+     * @throws IOException if the file can not be read, the daemon is not reachable or the output can not be
+     *                     written
+     */
+    public static void main(String[] args) throws IOException {
+        String mode = "TWO_PASS";
+        boolean image = false;
+
+        int argument = 1;
+        for (; argument < args.length && args[argument].startsWith("--"); argument++) {
+            switch (args[argument]) {
+                case "--one-pass":
+                    mode = "ONE_PASS";
+                    break;
+                case "--parallel":
+                    mode = "PARALLEL";
+                    break;
+                case "--bounded":
+                    mode = "BOUNDED";
+                    break;
+                case "--image":
+                    image = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option : " + args[argument]);
+            }
+        }
+
+        String directory = System.getProperty("user.dir");
+        File file = new File(directory + File.separator + args[argument]);
+        Path output = Paths.get(image ? "a.bin" : "a.txt");
+
+        try (SocketChannel daemon = SocketChannel.open(AssemblerDaemon.getAddress(args[0]));
+                FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the request: the header line and the file
+            String header = mode + " " + (image ? "IMAGE" : "TEXT") + "\n";
+            ByteBuffer buffer = ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1));
+            while (buffer.hasRemaining()) {
+                daemon.write(buffer);
+            }
+            long sent = 0;
+            while (sent < source.size()) {
+                sent += source.transferTo(sent, source.size() - sent, daemon);
+            }
+            daemon.shutdownOutput();
+
+            // the warning lines and the status line, the output follows them
+            buffer = ByteBuffer.allocate(1 << 16);
+            String status = null;
+            int lineStart = 0;
+            while (status == null) {
+                int lineEnd = lineStart;
+                while (lineEnd < buffer.position() && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd == buffer.position()) {
+                    // a line without its end, the rest of the response is read unless it has ended
+                    if (buffer.hasRemaining() && daemon.read(buffer) >= 0) {
+                        continue;
+                    }
+                    status = new String(buffer.array(), lineStart, lineEnd - lineStart,
+                            StandardCharsets.ISO_8859_1);
+                    lineStart = lineEnd;
+                    break;
+                }
+                String line = new String(buffer.array(), lineStart, lineEnd - lineStart,
+                        StandardCharsets.ISO_8859_1);
+                lineStart = lineEnd + 1;
+                if (line.startsWith(AssemblerDaemon.WARNING)) {
+                    System.err.println("Warning : " + line.substring(AssemblerDaemon.WARNING.length()));
+                } else {
+                    status = line;
+                }
+            }
+            if (!status.equals("OK")) {
+                System.err.println(status);
+                System.exit(1);
+            }
+            buffer.flip();
+            buffer.position(lineStart);
+
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (true) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                    if (daemon.read(buffer) < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                }
+            }
+        }
+    }
+}
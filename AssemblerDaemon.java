@@ -0,0 +1,202 @@
+/**************************************************************************************************
+ * Compilation: javac AssemblerDaemon.java
+ * Execution: java Assembler --daemon address
+ * Dependencies: Assembler.java MappedSource.java MemoryImage.java OutputSink.java ProgramGenerator.java
+ *
+ * A long running assembler that keeps a warmed up JVM resident, so that assembling a program does not pay
+ * for starting a JVM and compiling the assembler again. The daemon listens on a Unix domain socket (the
+ * address is a path) or on a loopback port (the address is a number) and serves every client on a thread
+ * of its own, each thread reusing one Assembler. AssemblerClient is the command line client.
+ *
+ * A request is a header line "mode format", where mode is the name of an Assembler.Mode and format is
+ * TEXT or IMAGE, followed by the program. The client then shuts down its side of the connection. The
+ * response is a line "WARNING message" for every overlap warning of the program, then a line "OK"
+ * followed by the output (the lines of a.txt or the 8 KB of a.bin), or a line "ERROR message" if the
+ * program could not be assembled.
+ * **************************************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+final class AssemblerDaemon {
+
+    // the size of the program assembled when the daemon starts, to get the assembler compiled
+    private static final int WARM_UP_LINES = 100_000;
+
+    // the start of a warning line of a response
+    static final String WARNING = "WARNING ";
+
+    private AssemblerDaemon() {
+    }
+
+    /**
+     * Serve assemble requests on the specified address until the JVM is stopped.
+     *
+     * @param address a socket path or a loopback port number
+     * @throws IOException if the address can not be listened on, or the path exists and is not a socket
+     */
+    static void serve(String address) throws IOException {
+        SocketAddress socketAddress = getAddress(address);
+        ServerSocketChannel server;
+        Path path = null;
+        if (socketAddress instanceof UnixDomainSocketAddress) {
+            // a socket file left behind by a daemon that was killed would prevent the bind
+            // any other file at the path is left alone
+            path = ((UnixDomainSocketAddress) socketAddress).getPath();
+            if (isSocket(path)) {
+                Files.delete(path);
+            } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("Can not listen on " + path + " : the file exists and is not a socket");
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(socketAddress);
+
+        // remove the socket of this daemon when it stops, unless it has been replaced by another file
+        if (path != null) {
+            Path socket = path;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (isSocket(socket)) {
+                        Files.delete(socket);
+                    }
+                } catch (IOException e) {
+                    // the daemon is stopping, the file is left behind
+                }
+            }));
+        }
+
+        warmUp();
+        System.err.println("Listening on " + address);
+
+        // every thread reuses one assembler for all of the requests it serves
+        ThreadLocal<Assembler> assemblers = ThreadLocal.withInitial(Assembler::new);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        while (true) {
+            SocketChannel client = server.accept();
+            pool.execute(() -> serve(client, assemblers.get()));
+        }
+    }
+
+    // is the file at the path a socket (or another special file), not following links?
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The socket address of an address given on the command line.
+     *
+     * @param address a loopback port number or a Unix domain socket path
+     * @return the socket address
+     */
+    static SocketAddress getAddress(String address) {
+        // this runs in the client too, so it avoids streams and lambdas that would slow down its start
+        for (int i = 0; i < address.length(); i++) {
+            if (!Character.isDigit(address.charAt(i))) {
+                return UnixDomainSocketAddress.of(address);
+            }
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+    }
+
+    // assemble a request of a client and send the response
+    private static void serve(SocketChannel client, Assembler assembler) {
+        try (client) {
+            ByteBuffer request = read(client);
+
+            int headerEnd = 0;
+            while (headerEnd < request.limit() && request.get(headerEnd) != '\n') {
+                headerEnd++;
+            }
+            String[] header = new String(request.array(), 0, headerEnd, StandardCharsets.ISO_8859_1).trim()
+                    .split(" ");
+            request.position(Math.min(headerEnd + 1, request.limit()));
+
+            // assemble into memory first, so that a failed program gets an error instead of a partial output
+            byte[] response;
+            try {
+                if (header.length != 2) {
+                    throw new IllegalArgumentException("Malformed request header");
+                }
+                Assembler.Mode mode = Assembler.Mode.valueOf(header[0]);
+                ByteArrayOutputStream code = new ByteArrayOutputStream();
+                if (header[1].equals("IMAGE")) {
+                    MemoryImage image = new MemoryImage();
+                    assembler.assemble(new MappedSource(request), mode, image);
+                    image.writeTo(Channels.newChannel(code));
+                } else {
+                    assembler.assemble(new MappedSource(request), mode, OutputSink.toStream(code));
+                }
+
+                // the warnings go before the status line, so that the output can be copied as it comes
+                StringBuilder status = new StringBuilder();
+                for (String message : assembler.getOverlapMessages()) {
+                    status.append(WARNING).append(message).append('\n');
+                }
+                status.append("OK\n");
+                ByteArrayOutputStream output = new ByteArrayOutputStream(status.length() + code.size());
+                output.write(status.toString().getBytes(StandardCharsets.ISO_8859_1));
+                code.writeTo(output);
+                response = output.toByteArray();
+            } catch (RuntimeException e) {
+                response = ("ERROR " + e + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(response);
+            while (buffer.hasRemaining()) {
+                client.write(buffer);
+            }
+        } catch (IOException e) {
+            System.err.println("Request failed : " + e);
+        }
+    }
+
+    // read everything the client sends, up to the shutdown of its output
+    private static ByteBuffer read(SocketChannel client) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        while (client.read(buffer) >= 0) {
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+                larger.put(buffer.flip());
+                buffer = larger;
+            }
+        }
+        return buffer.flip();
+    }
+
+    // assemble a generated program a few times in every mode, so that the first clients get compiled code
+    private static void warmUp() {
+        Assembler assembler = new Assembler();
+        List<String> program = new ProgramGenerator().generate(WARM_UP_LINES);
+        for (int i = 0; i < 10; i++) {
+            for (Assembler.Mode mode : Assembler.Mode.values()) {
+                assembler.assemble(program, mode, (address, word) -> { });
+            }
+        }
+        assembler.reset();
+    }
+}
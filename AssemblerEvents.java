@@ -0,0 +1,94 @@
+/**************************************************************************************************
+ * Compilation: javac AssemblerEvents.java
+ * Dependencies: none
+ *
+ * The JDK Flight Recorder events of the assembler, so that assemblies inside a long running JVM (such as
+ * the daemon or a build service) can be profiled with the standard JFR tools:
+ * java -XX:StartFlightRecording:filename=assembler.jfr ... and jfr print --categories Assembler.
+ * An Assembly event covers a whole program, a Phase event every phase of it (the same phases as --stats:
+ * the passes, flushing and writing the output, the cache), and a Line event the disection of a single
+ * line. Line events are disabled by default and only recorded for lines slower than their threshold, for
+ * looking into slow lines; enable them with mano.AssemblyLine#enabled=true. When no recording is running
+ * the events cost little more than their allocation.
+ * **************************************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+final class AssemblerEvents {
+
+    private static final EventType LINE = EventType.getEventType(Line.class);
+
+    private AssemblerEvents() {
+    }
+
+    /**
+     * Are line events being recorded? Checked once per program, so that the lines are only timed when
+     * they are.
+     *
+     * @return true if a recording has enabled line events
+     */
+    static boolean isLineEnabled() {
+        return LINE.isEnabled();
+    }
+
+    /**
+     * The assembly of a program.
+     */
+    @Name("mano.Assembly")
+    @Label("Assembly")
+    @Category("Assembler")
+    @Description("The assembly of a program")
+    static final class Assembly extends Event {
+        @Label("Source")
+        @Description("The assembled file, empty for a program that was not read from a file")
+        String source;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Lines")
+        @Description("The number of lines up to END")
+        int lines;
+    }
+
+    /**
+     * A phase of the assembly of a program.
+     */
+    @Name("mano.AssemblyPhase")
+    @Label("Assembly Phase")
+    @Category("Assembler")
+    @Description("A phase of the assembly of a program, such as a pass or writing the output")
+    static final class Phase extends Event {
+        @Label("Phase")
+        String phase;
+
+        Phase(String phase) {
+            this.phase = phase;
+        }
+    }
+
+    /**
+     * The disection of a line that took longer than the threshold.
+     */
+    @Name("mano.AssemblyLine")
+    @Label("Assembly Line")
+    @Category("Assembler")
+    @Description("The disection of a slow line")
+    @Enabled(false)
+    @Threshold("100 us")
+    static final class Line extends Event {
+        @Label("Line")
+        @Description("The number of the line, from 1")
+        int line;
+
+        @Label("Text")
+        String text;
+    }
+}
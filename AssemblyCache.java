@@ -0,0 +1,284 @@
+/**************************************************************************************************
+ * Compilation: javac AssemblyCache.java
+ * Dependencies: Assembler.java SymbolTable.java
+ *
+ * A persistent cache of assembled programs in a directory, so that a source file that has been assembled
+ * before is not assembled again. An entry is keyed by the SHA-256 hash of the bytes of the source, the
+ * mode, the output format and Assembler.VERSION, and holds the output file together with the symbol
+ * table. Every entry is a single file written under a temporary name and then renamed, so concurrent
+ * assemblers (such as the threads of a batch) never see a partial entry. The cache is bounded in size:
+ * when it grows past its limit the least recently used entries (by modification time, which a hit
+ * updates) are deleted. The size is kept as a running total, counted once when the cache is opened and
+ * updated by every store, so the directory is only listed again when the total passes the limit.
+ *
+ * An entry consists of the length of the symbol table (a 4 byte int), the symbol table as lines of text
+ * "label address", and the output file.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+final class AssemblyCache {
+
+    /**
+     * The size limit of a cache if none is given, in bytes.
+     */
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    // the extension of the entries, other files in the directory are left alone
+    private static final String ENTRY = ".entry";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // the total size of the entries, shared by the threads storing into the cache
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Open a cache in a directory, creating the directory if it does not exist.
+     *
+     * @param directory the directory of the cache
+     * @param maxBytes the size limit of the cache in bytes
+     * @throws IOException if the directory can not be created or listed
+     */
+    AssemblyCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        for (Path entry : listEntries()) {
+            size.addAndGet(sizeOf(entry));
+        }
+    }
+
+    /**
+     * The key of a source file: the SHA-256 hash of its bytes, the mode, the output format and the assembler
+     * version. The mode is part of the key because the modes do not accept the same programs.
+     *
+     * @param source the source file
+     * @param mode how the source is assembled
+     * @param image true for a memory image
+     * @return the key as a hexadecimal string
+     * @throws IOException if the source can not be read
+     */
+    String getKey(Path source, Assembler.Mode mode, boolean image) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        String prefix = Assembler.VERSION + " " + mode + (image ? " IMAGE " : " TEXT ");
+        digest.update(prefix.getBytes(StandardCharsets.ISO_8859_1));
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (long position = 0; position < channel.size(); position += Integer.MAX_VALUE) {
+                long length = Math.min(channel.size() - position, Integer.MAX_VALUE);
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                digest.update(bytes);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit(b >>> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Look up an entry, and on a hit write its output file and load its symbol table. An entry that can not
+     * be read or is not well formed is deleted and counts as a miss.
+     *
+     * @param key the key of the source
+     * @param output the file to write the output to
+     * @param symbolTable the symbol table to define the labels of the program in
+     * @return true on a hit, false if the cache has no usable entry for the key
+     * @throws IOException if the output can not be written
+     */
+    boolean load(String key, Path output, SymbolTable symbolTable) throws IOException {
+        Path entry = directory.resolve(key + ENTRY);
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            String[] labels;
+            int[] addresses;
+            try {
+                int length = read(channel, Integer.BYTES).getInt();
+                if (length < 0 || length > channel.size() - Integer.BYTES) {
+                    throw new IOException("Bad cache entry length " + length);
+                }
+                ByteBuffer symbols = read(channel, length);
+                String[] lines = new String(symbols.array(), StandardCharsets.ISO_8859_1).split("\n");
+                labels = new String[lines.length];
+                addresses = new int[lines.length];
+                for (int i = 0; i < lines.length; i++) {
+                    int space = lines[i].indexOf(' ');
+                    if (space > 0) {
+                        labels[i] = lines[i].substring(0, space);
+                        addresses[i] = Integer.parseInt(lines[i], space + 1, lines[i].length(), 10);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // a corrupt entry would fail every later lookup, so it is removed
+                discard(entry);
+                return false;
+            }
+
+            // the entry is complete, only now are the symbols and the output touched
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] != null) {
+                    symbolTable.setAddress(symbolTable.intern(labels[i]), addresses[i]);
+                }
+            }
+            try (FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = channel.position();
+                while (position < channel.size()) {
+                    position += channel.transferTo(position, channel.size() - position, outputChannel);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // a miss, or an entry that has just been evicted
+            return false;
+        }
+
+        // the entry is now the most recently used
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    // delete an entry and take it out of the running total
+    private void discard(Path entry) throws IOException {
+        long removed = sizeOf(entry);
+        if (Files.deleteIfExists(entry)) {
+            size.addAndGet(-removed);
+        }
+    }
+
+    // read the next bytes of an entry
+    private static ByteBuffer read(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated cache entry");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Store the output file and the symbol table of a source, then evict entries if the cache is too large.
+     *
+     * @param key the key of the source
+     * @param output the output file of the source
+     * @param symbolTable the labels of the program
+     * @throws IOException if the entry can not be written
+     */
+    void store(String key, Path output, SymbolTable symbolTable) throws IOException {
+        StringBuilder symbols = new StringBuilder();
+        for (int id = 0; id < symbolTable.size(); id++) {
+            if (symbolTable.getAddress(id) != SymbolTable.UNDEFINED) {
+                symbols.append(symbolTable.getSymbol(id)).append(' ').append(symbolTable.getAddress(id)).append('\n');
+            }
+        }
+        byte[] symbolBytes = symbols.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                    FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + symbolBytes.length);
+                header.putInt(symbolBytes.length).put(symbolBytes).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                long position = 0;
+                while (position < outputChannel.size()) {
+                    position += outputChannel.transferTo(position, outputChannel.size() - position, channel);
+                }
+            }
+            // an entry of the same source stored by another assembler is replaced
+            Path entry = directory.resolve(key + ENTRY);
+            long added = Files.size(temporary) - sizeOf(entry);
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (size.addAndGet(added) > maxBytes) {
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // delete the least recently used entries until the cache is within its size limit
+    // the directory is listed again, which also corrects the running total for the entries that other
+    // processes have stored or evicted
+    private synchronized void evict() throws IOException {
+        long counted = size.get();
+        if (counted <= maxBytes) {
+            // another thread has evicted in the meantime
+            return;
+        }
+        List<Path> entries = listEntries();
+
+        long[] times = new long[entries.size()];
+        long[] sizes = new long[entries.size()];
+        long total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entries.get(i), BasicFileAttributes.class);
+                times[i] = attributes.lastModifiedTime().toMillis();
+                sizes[i] = attributes.size();
+                total += sizes[i];
+            } catch (NoSuchFileException e) {
+                // evicted by another assembler in the meantime
+            }
+        }
+
+        // the least recently used first
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+        for (int i = 0; i < order.length && total > maxBytes; i++) {
+            Files.deleteIfExists(entries.get(order[i]));
+            total -= sizes[order[i]];
+        }
+
+        // the stores of other threads since the total was read are kept in it
+        size.addAndGet(total - counted);
+    }
+
+    // the entries in the directory
+    private List<Path> listEntries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(ENTRY)).forEach(entries::add);
+        }
+        return entries;
+    }
+
+    // the size of an entry, 0 if there is none
+    private static long sizeOf(Path entry) throws IOException {
+        try {
+            return Files.size(entry);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+}
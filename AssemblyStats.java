@@ -0,0 +1,169 @@
+/**************************************************************************************************
+ * Compilation: javac AssemblyStats.java
+ * Dependencies: none
+ *
+ * The statistics of an assembly for --stats: the wall time and the bytes allocated by every phase (mapping
+ * the source, the passes, flushing the output, the cache), and the number of lines, words and defined
+ * symbols of the program. The phases follow each other, starting a phase ends the one before it. The
+ * allocated bytes are summed over all of the live threads through the ThreadMXBean of the JVM, so the
+ * workers of a parallel assembly are counted too; they are -1 if the JVM can not measure them. The report
+ * is written as text for people or as a single line of JSON for scripts.
+ * **************************************************************************************************/
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+final class AssemblyStats {
+
+    private final com.sun.management.ThreadMXBean threads = getThreadMXBean();
+
+    // the phases, with their wall time and allocated bytes
+    private final List<String> phases = new ArrayList<>();
+    private final List<long[]> measures = new ArrayList<>();
+
+    // the phase that is running, its start time and the allocated bytes at its start
+    private String phase;
+    private long startNanos;
+    private long startBytes;
+
+    private String mode = "";
+    private int lines;
+    private int words;
+    private int symbols;
+    private boolean cached;
+
+    /**
+     * Start a phase, ending the phase that is running.
+     *
+     * @param name the name of the phase
+     */
+    void start(String name) {
+        stop();
+        phase = name;
+        startBytes = getAllocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * End the phase that is running, if any.
+     */
+    void stop() {
+        if (phase == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = startBytes < 0 ? -1 : getAllocatedBytes() - startBytes;
+        phases.add(phase);
+        measures.add(new long[] {nanos, bytes});
+        phase = null;
+    }
+
+    /**
+     * Set the size of the assembled program.
+     *
+     * @param mode the name of the mode the program was assembled in
+     * @param lines the number of lines up to END
+     * @param words the number of words of machine code
+     * @param symbols the number of labels defined
+     * @param cached true if the output was taken from the cache instead of being assembled
+     */
+    void setProgram(String mode, int lines, int words, int symbols, boolean cached) {
+        this.mode = mode;
+        this.lines = lines;
+        this.words = words;
+        this.symbols = symbols;
+        this.cached = cached;
+    }
+
+    /**
+     * Write the statistics as a table, a line for every phase and one for the total.
+     *
+     * @param output the stream to write to
+     */
+    void writeText(PrintStream output) {
+        output.printf(Locale.ROOT, "%s : %d lines, %d words, %d symbols%s%n", mode, lines, words, symbols,
+                cached ? ", cached" : "");
+        output.printf(Locale.ROOT, "%-14s %12s %14s %16s%n", "phase", "ms", "lines/s", "allocated bytes");
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < phases.size(); i++) {
+            long nanos = measures.get(i)[0];
+            long bytes = measures.get(i)[1];
+            output.printf(Locale.ROOT, "%-14s %12.3f %14.0f %16d%n", phases.get(i), nanos / 1e6,
+                    getLinesPerSecond(nanos), bytes);
+            totalNanos += nanos;
+            totalBytes = bytes < 0 || totalBytes < 0 ? -1 : totalBytes + bytes;
+        }
+        output.printf(Locale.ROOT, "%-14s %12.3f %14.0f %16d%n", "total", totalNanos / 1e6,
+                getLinesPerSecond(totalNanos), totalBytes);
+    }
+
+    /**
+     * Write the statistics as a line of JSON, with the times in nanoseconds.
+     *
+     * @param output the stream to write to
+     */
+    void writeJson(PrintStream output) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"mode\":\"").append(mode).append("\",\"lines\":").append(lines)
+                .append(",\"words\":").append(words).append(",\"symbols\":").append(symbols)
+                .append(",\"cached\":").append(cached).append(",\"phases\":[");
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < phases.size(); i++) {
+            long nanos = measures.get(i)[0];
+            long bytes = measures.get(i)[1];
+            if (i > 0) {
+                json.append(',');
+            }
+            appendPhase(json, phases.get(i), nanos, bytes);
+            totalNanos += nanos;
+            totalBytes = bytes < 0 || totalBytes < 0 ? -1 : totalBytes + bytes;
+        }
+        json.append("],\"total\":");
+        appendPhase(json, "total", totalNanos, totalBytes);
+        output.println(json.append('}'));
+    }
+
+    // a phase as a JSON object
+    private void appendPhase(StringBuilder json, String name, long nanos, long bytes) {
+        json.append("{\"name\":\"").append(name).append("\",\"nanos\":").append(nanos)
+                .append(",\"linesPerSecond\":").append(Math.round(getLinesPerSecond(nanos)))
+                .append(",\"allocatedBytes\":").append(bytes).append('}');
+    }
+
+    // the throughput of a phase over all of the lines of the program
+    private double getLinesPerSecond(long nanos) {
+        return nanos == 0 ? 0 : lines * 1e9 / nanos;
+    }
+
+    // the bytes allocated so far by all of the live threads, -1 if they can not be measured
+    private long getAllocatedBytes() {
+        if (threads == null) {
+            return -1;
+        }
+        long bytes = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                bytes += allocated;
+            }
+        }
+        return bytes;
+    }
+
+    // the ThreadMXBean with allocation counters, null if the JVM does not have one
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+/**************************************************************************************************
+ * Compilation: javac BatchAssembler.java
+ * Execution: java Assembler --batch fileOrDirectory ...
+ * Dependencies: Assembler.java
+ *
+ * Assembles many source files in one JVM. The files (and the .txt files in the given directories) are
+ * assembled concurrently on a fixed pool with one thread per core, each thread reusing one Assembler.
+ * All of the assemblers share the immutable instruction tables. Every file gets its own output next to
+ * it, with the extension replaced by .out (or .bin for memory images), so that the outputs are never
+ * taken as sources by a later batch.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+final class BatchAssembler {
+
+    private BatchAssembler() {
+    }
+
+    /**
+     * Assemble the specified files and the .txt files in the specified directories. A file that fails to
+     * assemble is reported on the standard error and does not stop the others, as are overlapping words.
+     *
+     * @param paths the files and directories to assemble
+     * @param mode how every file is assembled
+     * @param image if true memory images are written instead of text
+     * @param cache the cache shared by all of the files, null to assemble every file
+     * @return the number of files that failed to assemble
+     * @throws IOException if a directory can not be listed
+     */
+    static int assemble(List<Path> paths, Assembler.Mode mode, boolean image, AssemblyCache cache)
+            throws IOException {
+        List<Path> sources = getSources(paths);
+
+        // every thread reuses one assembler for all of its files
+        ThreadLocal<Assembler> assemblers = ThreadLocal.withInitial(Assembler::new);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (Path source : sources) {
+            results.add(pool.submit(() -> {
+                Assembler assembler = assemblers.get();
+                assembler.assembleFile(source, getOutputPath(source, image), mode, image, cache);
+                return assembler.getOverlapWarnings();
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            try {
+                for (String warning : results.get(i).get()) {
+                    System.err.println(sources.get(i) + " : " + warning);
+                }
+            } catch (ExecutionException e) {
+                System.err.println(sources.get(i) + " : " + e.getCause());
+                failed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while assembling " + sources.get(i), e);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * The output file of a source file, the source with its extension replaced by .out or .bin.
+     *
+     * @param source the source file
+     * @param image true for a memory image
+     * @return the path of the output file
+     */
+    static Path getOutputPath(Path source, boolean image) {
+        String name = source.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        if (extension > 0) {
+            name = name.substring(0, extension);
+        }
+        return source.resolveSibling(name + (image ? ".bin" : ".out"));
+    }
+
+    // the files to assemble, directories are replaced by the .txt files in them
+    private static List<Path> getSources(List<Path> paths) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    sources.addAll(files
+                            .filter(file -> Files.isRegularFile(file) && file.toString().endsWith(".txt"))
+                            .sorted()
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                sources.add(path);
+            }
+        }
+        return sources;
+    }
+}
@@ -0,0 +1,107 @@
+/**************************************************************************************************
+ * Compilation: javac BinaryEncoder.java
+ * Dependencies: none
+ *
+ * Writes numbers as strings of 1's and 0's straight into a char or (ASCII) byte buffer. The digits are
+ * copied from a precomputed table holding the 8 binary digits of every byte, so a 12 bit address takes two
+ * table copies and a 16 bit word two as well, without any intermediate strings.
+ * **************************************************************************************************/
+
+final class BinaryEncoder {
+
+    // the 8 binary digits of every byte value, byte b starts at index 8 * b
+    private static final char[] BYTE_DIGITS = new char[256 * 8];
+    private static final byte[] ASCII_BYTE_DIGITS = new byte[256 * 8];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            for (int bit = 0; bit < 8; bit++) {
+                BYTE_DIGITS[8 * b + bit] = (b & (0x80 >>> bit)) != 0 ? '1' : '0';
+                ASCII_BYTE_DIGITS[8 * b + bit] = (byte) BYTE_DIGITS[8 * b + bit];
+            }
+        }
+    }
+
+    private BinaryEncoder() {
+    }
+
+    /**
+     * Write the lowest length bits of a number as binary digits, most significant bit first.
+     *
+     * @param value the number to write
+     * @param length the number of digits, at most 32
+     * @param buffer the buffer to write to
+     * @param offset the index of the first digit in the buffer
+     * @return the index just after the last digit
+     */
+    static int write(int value, int length, char[] buffer, int offset) {
+        // the leading bits that do not fill a byte
+        int partial = length & 7;
+        if (partial != 0) {
+            int b = value >>> (length - partial) & 0xFF;
+            System.arraycopy(BYTE_DIGITS, 8 * b + 8 - partial, buffer, offset, partial);
+            offset += partial;
+            length -= partial;
+        }
+
+        // the remaining bits byte by byte
+        while (length > 0) {
+            length -= 8;
+            System.arraycopy(BYTE_DIGITS, 8 * (value >>> length & 0xFF), buffer, offset, 8);
+            offset += 8;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Write the lowest length bits of a number as ASCII binary digits, most significant bit first.
+     *
+     * @param value the number to write
+     * @param length the number of digits, at most 32
+     * @param buffer the buffer to write to
+     * @param offset the index of the first digit in the buffer
+     * @return the index just after the last digit
+     */
+    static int write(int value, int length, byte[] buffer, int offset) {
+        int partial = length & 7;
+        if (partial != 0) {
+            int b = value >>> (length - partial) & 0xFF;
+            System.arraycopy(ASCII_BYTE_DIGITS, 8 * b + 8 - partial, buffer, offset, partial);
+            offset += partial;
+            length -= partial;
+        }
+
+        while (length > 0) {
+            length -= 8;
+            System.arraycopy(ASCII_BYTE_DIGITS, 8 * (value >>> length & 0xFF), buffer, offset, 8);
+            offset += 8;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Write a number as binary digits without leading zeros, as Integer.toBinaryString does.
+     *
+     * @param value the number to write
+     * @param buffer the buffer to write to, at least 32 chars from offset
+     * @param offset the index of the first digit in the buffer
+     * @return the index just after the last digit
+     */
+    static int writeUnpadded(int value, char[] buffer, int offset) {
+        return write(value, Math.max(32 - Integer.numberOfLeadingZeros(value), 1), buffer, offset);
+    }
+
+    /**
+     * Write a number as ASCII binary digits without leading zeros, as Integer.toBinaryString does.
+     *
+     * @param value the number to write
+     * @param buffer the buffer to write to, at least 32 bytes from offset
+     * @param offset the index of the first digit in the buffer
+     * @return the index just after the last digit
+     */
+    static int writeUnpadded(int value, byte[] buffer, int offset) {
+        return write(value, Math.max(32 - Integer.numberOfLeadingZeros(value), 1), buffer, offset);
+    }
+}
@@ -0,0 +1,485 @@
+/**************************************************************************************************
+ * Compilation: javac CrossReference.java
+ * Dependencies: ParsedProgram.java Assembler.java SymbolTable.java
+ *
+ * The reverse of the symbol table: for every label, the MRIs that refer to it and the lines that define
+ * it. The lines of the parsed program are split into blocks of about BLOCK_LINES lines, and every block
+ * knows the number of its lines and of its words, so the line and the output word at which a block
+ * starts are prefix sums over the blocks. The uses and the definitions are stored with their block, as
+ * four ints per entry in a primitive int array per block sorted by symbol: the id of the symbol, the
+ * index of the line in the block, the index of its word in the block and the location of the line. Every
+ * symbol has the ids of the blocks that use it (and of the blocks that define it), in the order of the
+ * lines. The ids are those of the SymbolTable of the program, so finding the usages of a label is a walk
+ * over the blocks that use it.
+ *
+ * The index follows the edits of Assembler.reassemble. An edit rebuilds the blocks around the edited and
+ * the moved lines from those lines only: the entries of the other blocks are relative to their block, so
+ * they stay valid when the lines or the words before them are shifted, and only the prefix sums over the
+ * blocks and the lists of blocks of the symbols used or defined around the edit are updated.
+ * **************************************************************************************************/
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+final class CrossReference {
+
+    // the number of lines of a block, an edit splits the lines it rebuilds into blocks of about this size
+    private static final int BLOCK_LINES = 1024;
+
+    // the fields of an entry
+    private static final int SYMBOL = 0;
+    private static final int LINE = 1;
+    private static final int WORD = 2;
+    private static final int ADDRESS = 3;
+    private static final int ENTRY_INTS = 4;
+
+    // the blocks in the order of the lines, indexed by their position: their ids, their number of lines and
+    // of words, and the prefix sums of these
+    private int blockCount;
+    private int[] blockIds = new int[0];
+    private int[] blockLines = new int[0];
+    private int[] blockWords = new int[0];
+    private int[] lineStarts = new int[0];
+    private int[] wordStarts = new int[0];
+
+    // the positions of the blocks, indexed by their ids, which are not reused
+    private int nextBlockId;
+    private int[] blockPositions = new int[0];
+
+    // the MRIs referring to every symbol and the lines defining every label
+    private final Entries uses = new Entries();
+    private final Entries definitions = new Entries();
+
+    /**
+     * Index the uses and the definitions of the labels in a program.
+     *
+     * @param program the program
+     */
+    CrossReference(ParsedProgram program) {
+        replace(0, 0, program, program.size(), program.size());
+    }
+
+    /**
+     * The lines of the uses of a symbol.
+     *
+     * @param symbol the id of the symbol, NONE for none
+     * @return the indexes in the parsed program of the MRIs referring to the symbol, ascending
+     */
+    int[] getLines(int symbol) {
+        return uses.collect(symbol, LINE);
+    }
+
+    /**
+     * The addresses of the uses of a symbol.
+     *
+     * @param symbol the id of the symbol, NONE for none
+     * @return the locations of the MRIs referring to the symbol, in the order of getLines
+     */
+    int[] getAddresses(int symbol) {
+        return uses.collect(symbol, ADDRESS);
+    }
+
+    /**
+     * The output words of the uses of a symbol.
+     *
+     * @param symbol the id of the symbol, NONE for none
+     * @return the indexes in the output of the words of the MRIs referring to the symbol, in the order of
+     *         getLines
+     */
+    int[] getWords(int symbol) {
+        return uses.collect(symbol, WORD);
+    }
+
+    /**
+     * Is a symbol used by an MRI outside of a range of lines?
+     *
+     * @param symbol the id of the symbol
+     * @param from the index of the first line of the range
+     * @param to the index just after the last line of the range
+     * @return true if a line before from or at or after to refers to the symbol
+     */
+    boolean isUsedOutside(int symbol, int from, int to) {
+        return uses.count(symbol) > 0 && (uses.getFirstLine(symbol) < from || uses.getLastLine(symbol) >= to);
+    }
+
+    /**
+     * The number of lines defining a label. A label defined more than once has the address of its last
+     * definition.
+     *
+     * @param label the id of the label
+     * @return the number of lines with the label
+     */
+    int countDefinitions(int label) {
+        return definitions.count(label);
+    }
+
+    /**
+     * The last line defining a label, whose location is the address of the label.
+     *
+     * @param label the id of the label
+     * @return the index in the parsed program of the line, -1 if no line defines the label
+     */
+    int getLastDefinition(int label) {
+        return definitions.count(label) == 0 ? -1 : definitions.getLastLine(label);
+    }
+
+    /**
+     * The index in the output of the word of a line, found from the block of the line, so only the lines
+     * before it in its block are counted.
+     *
+     * @param program the indexed program
+     * @param line the index of the line in the program, up to its size
+     * @return the number of words before the line
+     */
+    int getWordIndex(ParsedProgram program, int line) {
+        if (blockCount == 0) {
+            return 0;
+        }
+        int position = findBlock(line);
+        return wordStarts[position] + program.countWords(lineStarts[position], line);
+    }
+
+    /**
+     * Write the cross reference listing: a line for every label, in alphabetical order, with its address
+     * and the source line and the address of every MRI that refers to it. Addresses are decimal.
+     *
+     * @param output the stream to write to
+     * @param program the program the index was built from, for the source lines of the uses
+     * @param symbolTable the labels and their addresses
+     */
+    void writeListing(PrintStream output, ParsedProgram program, SymbolTable symbolTable) {
+        String[] labels = new String[symbolTable.size()];
+        int labelCount = 0;
+        for (int id = 0; id < symbolTable.size(); id++) {
+            if (symbolTable.getAddress(id) != SymbolTable.UNDEFINED) {
+                labels[labelCount++] = symbolTable.getSymbol(id);
+            }
+        }
+        Arrays.sort(labels, 0, labelCount);
+
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < labelCount; i++) {
+            int label = symbolTable.find(labels[i]);
+            line.setLength(0);
+            line.append(labels[i]).append(' ').append(symbolTable.getAddress(label)).append(" :");
+            int[] lines = getLines(label);
+            int[] addresses = getAddresses(label);
+            for (int use = 0; use < lines.length; use++) {
+                line.append(' ').append(program.getLine(lines[use])).append('@').append(addresses[use]);
+            }
+            output.println(line);
+        }
+    }
+
+    /**
+     * Update the index after the lines [from, to) of the program were replaced by the lines [from, editEnd)
+     * and the lines [editEnd, movedEnd) were moved. The blocks containing these lines are split again into
+     * new blocks, whose entries are found from their lines; the entries of the other blocks are kept as they
+     * are.
+     *
+     * @param from the index of the first replaced line
+     * @param to the index just after the last replaced line, before the edit
+     * @param program the program after the edit
+     * @param editEnd the index just after the last new line
+     * @param movedEnd the index just after the last moved line
+     */
+    void replace(int from, int to, ParsedProgram program, int editEnd, int movedEnd) {
+        int lineDelta = editEnd - to;
+
+        // the blocks [first, last] that contain the edited and the moved lines, before the edit
+        int first = 0;
+        int last = -1;
+        if (blockCount > 0) {
+            first = findBlock(from);
+            last = findBlock(Math.max(from, movedEnd - lineDelta - 1));
+        }
+
+        // the lines of these blocks after the edit; a few lines are rebuilt together with a neighbouring
+        // block, so that the blocks do not become small
+        int regionStart = first <= last ? lineStarts[first] : 0;
+        int regionEnd = first <= last ? lineStarts[last] + blockLines[last] + lineDelta : lineDelta;
+        if (regionEnd - regionStart < BLOCK_LINES / 2) {
+            if (last + 1 < blockCount) {
+                last++;
+                regionEnd += blockLines[last];
+            } else if (first > 0 && first <= last) {
+                first--;
+                regionStart -= blockLines[first];
+            }
+        }
+        int wordStart = first <= last ? wordStarts[first] : 0;
+
+        for (int position = first; position <= last; position++) {
+            uses.removeBlock(blockIds[position]);
+            definitions.removeBlock(blockIds[position]);
+        }
+
+        // split the lines into new blocks and index their entries
+        int regionLines = regionEnd - regionStart;
+        int newCount = regionLines == 0 ? 0 : Math.max(1, (regionLines + BLOCK_LINES / 2) / BLOCK_LINES);
+        int[] ids = new int[newCount];
+        int[] lineCounts = new int[newCount];
+        int[] wordCounts = new int[newCount];
+
+        Assembler.Instruction instruction = new Assembler.Instruction();
+        int line = regionStart;
+        for (int block = 0; block < newCount; block++) {
+            ids[block] = newBlockId();
+            lineCounts[block] = (int) ((long) regionLines * (block + 1) / newCount
+                    - (long) regionLines * block / newCount);
+
+            int word = 0;
+            for (int offset = 0; offset < lineCounts[block]; offset++, line++) {
+                program.get(line, instruction);
+                if (instruction.type == Assembler.Type.MRI) {
+                    uses.add(instruction.symbol, offset, word, instruction.location);
+                }
+                if (instruction.label != SymbolTable.NONE) {
+                    definitions.add(instruction.label, offset, word, instruction.location);
+                }
+                if (instruction.type != Assembler.Type.PSEUDO || instruction.operation != Assembler.ORG) {
+                    word++;
+                }
+            }
+            wordCounts[block] = word;
+            uses.endBlock(ids[block]);
+            definitions.endBlock(ids[block]);
+        }
+
+        // the blocks of the symbols are replaced while the positions of the old blocks are still known
+        uses.replaceBlocks(first, last);
+        definitions.replaceBlocks(first, last);
+
+        // put the new blocks in place of the old ones and sum up the blocks from there
+        int count = blockCount - (last - first + 1) + newCount;
+        if (count > blockIds.length) {
+            int capacity = Math.max(count, 2 * blockIds.length);
+            blockIds = Arrays.copyOf(blockIds, capacity);
+            blockLines = Arrays.copyOf(blockLines, capacity);
+            blockWords = Arrays.copyOf(blockWords, capacity);
+            lineStarts = Arrays.copyOf(lineStarts, capacity);
+            wordStarts = Arrays.copyOf(wordStarts, capacity);
+        }
+        int tail = blockCount - (last + 1);
+        System.arraycopy(blockIds, last + 1, blockIds, first + newCount, tail);
+        System.arraycopy(blockLines, last + 1, blockLines, first + newCount, tail);
+        System.arraycopy(blockWords, last + 1, blockWords, first + newCount, tail);
+        System.arraycopy(ids, 0, blockIds, first, newCount);
+        System.arraycopy(lineCounts, 0, blockLines, first, newCount);
+        System.arraycopy(wordCounts, 0, blockWords, first, newCount);
+        blockCount = count;
+
+        int lineStart = regionStart;
+        int wordCount = wordStart;
+        for (int position = first; position < blockCount; position++) {
+            lineStarts[position] = lineStart;
+            wordStarts[position] = wordCount;
+            blockPositions[blockIds[position]] = position;
+            lineStart += blockLines[position];
+            wordCount += blockWords[position];
+        }
+    }
+
+    // the position of the block containing a line, the last block for the line after the last one
+    private int findBlock(int line) {
+        int position = Arrays.binarySearch(lineStarts, 0, blockCount, line);
+        position = position < 0 ? -position - 2 : position;
+        return Math.max(0, Math.min(position, blockCount - 1));
+    }
+
+    // a new block id, with room for the block in the arrays indexed by id
+    private int newBlockId() {
+        if (nextBlockId == blockPositions.length) {
+            int capacity = Math.max(16, 2 * blockPositions.length);
+            blockPositions = Arrays.copyOf(blockPositions, capacity);
+            uses.blockEntries = Arrays.copyOf(uses.blockEntries, capacity);
+            definitions.blockEntries = Arrays.copyOf(definitions.blockEntries, capacity);
+        }
+        return nextBlockId++;
+    }
+
+    // the entries of one kind, the uses or the definitions, of the blocks and of the symbols
+    private final class Entries {
+        // the entries of every block sorted by symbol, then by line, indexed by the id of the block
+        int[][] blockEntries = new int[0][];
+
+        // the blocks with entries of every symbol and the number of its entries, indexed by the symbol
+        private int[][] symbolBlocks = new int[0][];
+        private int[] symbolBlockCounts = new int[0];
+        private int[] counts = new int[0];
+
+        // while an edit is indexed: the symbols whose blocks change, and the new blocks of every symbol
+        // linked in descending order from newBlocks[symbol], -1 for none
+        private final BitSet changed = new BitSet();
+        private int[] newBlocks = new int[0];
+        private int[] linkedBlocks = new int[16];
+        private int[] next = new int[16];
+        private int links;
+
+        // the entries of the block being indexed, in the order of the lines, and their order by symbol
+        private int[] found = new int[16 * ENTRY_INTS];
+        private long[] order = new long[16];
+        private int foundCount;
+
+        // the number of entries of a symbol
+        int count(int symbol) {
+            return symbol < 0 || symbol >= counts.length ? 0 : counts[symbol];
+        }
+
+        // a field of the entries of a symbol in the order of the lines, the lines and the words are absolute
+        int[] collect(int symbol, int field) {
+            int[] values = new int[count(symbol)];
+            int count = 0;
+            for (int block = 0; count < values.length; block++) {
+                int id = symbolBlocks[symbol][block];
+                int[] entries = blockEntries[id];
+                int start = field == LINE ? lineStarts[blockPositions[id]]
+                        : field == WORD ? wordStarts[blockPositions[id]] : 0;
+                for (int entry = findEntry(entries, symbol); entry * ENTRY_INTS < entries.length
+                        && entries[entry * ENTRY_INTS + SYMBOL] == symbol; entry++) {
+                    values[count++] = start + entries[entry * ENTRY_INTS + field];
+                }
+            }
+            return values;
+        }
+
+        // the line of the first entry of a symbol, which has entries
+        int getFirstLine(int symbol) {
+            int id = symbolBlocks[symbol][0];
+            int[] entries = blockEntries[id];
+            return lineStarts[blockPositions[id]] + entries[findEntry(entries, symbol) * ENTRY_INTS + LINE];
+        }
+
+        // the line of the last entry of a symbol, which has entries
+        int getLastLine(int symbol) {
+            int id = symbolBlocks[symbol][symbolBlockCounts[symbol] - 1];
+            int[] entries = blockEntries[id];
+            return lineStarts[blockPositions[id]] + entries[(findEntry(entries, symbol + 1) - 1) * ENTRY_INTS + LINE];
+        }
+
+        // remove the entries of an old block of the edit
+        void removeBlock(int id) {
+            int[] entries = blockEntries[id];
+            for (int entry = 0; entry < entries.length; entry += ENTRY_INTS) {
+                changed.set(entries[entry + SYMBOL]);
+                counts[entries[entry + SYMBOL]]--;
+            }
+            blockEntries[id] = null;
+        }
+
+        // add an entry to the block being indexed
+        void add(int symbol, int line, int word, int location) {
+            if (foundCount == order.length) {
+                found = Arrays.copyOf(found, 2 * found.length);
+                order = Arrays.copyOf(order, 2 * order.length);
+            }
+            found[foundCount * ENTRY_INTS + SYMBOL] = symbol;
+            found[foundCount * ENTRY_INTS + LINE] = line;
+            found[foundCount * ENTRY_INTS + WORD] = word;
+            found[foundCount * ENTRY_INTS + ADDRESS] = location;
+            order[foundCount] = (long) symbol << 32 | foundCount;
+            foundCount++;
+        }
+
+        // store the entries of the block being indexed, sorted by symbol, and link the block to its symbols
+        void endBlock(int id) {
+            Arrays.sort(order, 0, foundCount);
+            int[] entries = new int[foundCount * ENTRY_INTS];
+            for (int entry = 0; entry < foundCount; entry++) {
+                System.arraycopy(found, (int) order[entry] * ENTRY_INTS, entries, entry * ENTRY_INTS, ENTRY_INTS);
+                int symbol = entries[entry * ENTRY_INTS + SYMBOL];
+                ensureSymbol(symbol);
+                counts[symbol]++;
+                if (entry == 0 || entries[(entry - 1) * ENTRY_INTS + SYMBOL] != symbol) {
+                    if (links == next.length) {
+                        linkedBlocks = Arrays.copyOf(linkedBlocks, 2 * links);
+                        next = Arrays.copyOf(next, 2 * links);
+                    }
+                    linkedBlocks[links] = id;
+                    next[links] = newBlocks[symbol];
+                    newBlocks[symbol] = links;
+                    links++;
+                    changed.set(symbol);
+                }
+            }
+            blockEntries[id] = entries;
+            foundCount = 0;
+        }
+
+        // replace the old blocks [first, last] of the changed symbols by their new blocks
+        void replaceBlocks(int first, int last) {
+            for (int symbol = changed.nextSetBit(0); symbol >= 0; symbol = changed.nextSetBit(symbol + 1)) {
+                int[] blocks = symbolBlocks[symbol];
+                int count = symbolBlockCounts[symbol];
+                int removeFrom = findBlock(blocks, count, first);
+                int removeTo = findBlock(blocks, count, last + 1);
+                int added = 0;
+                for (int link = newBlocks[symbol]; link >= 0; link = next[link]) {
+                    added++;
+                }
+
+                int newCount = count - (removeTo - removeFrom) + added;
+                if (newCount > blocks.length) {
+                    blocks = Arrays.copyOf(blocks, Math.max(newCount, 2 * count));
+                    symbolBlocks[symbol] = blocks;
+                }
+                System.arraycopy(blocks, removeTo, blocks, removeFrom + added, count - removeTo);
+                int position = removeFrom + added;
+                for (int link = newBlocks[symbol]; link >= 0; link = next[link]) {
+                    blocks[--position] = linkedBlocks[link];
+                }
+                symbolBlockCounts[symbol] = newCount;
+                newBlocks[symbol] = -1;
+            }
+            changed.clear();
+            links = 0;
+        }
+
+        // the index of the first block of a list of blocks at or after a position
+        private int findBlock(int[] blocks, int count, int position) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (blockPositions[blocks[middle]] < position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        // make room for a symbol in the arrays indexed by symbol
+        private void ensureSymbol(int symbol) {
+            if (symbol >= counts.length) {
+                int capacity = Math.max(symbol + 1, 2 * counts.length);
+                int oldCapacity = counts.length;
+                symbolBlocks = Arrays.copyOf(symbolBlocks, capacity);
+                symbolBlockCounts = Arrays.copyOf(symbolBlockCounts, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                newBlocks = Arrays.copyOf(newBlocks, capacity);
+                for (int id = oldCapacity; id < capacity; id++) {
+                    symbolBlocks[id] = new int[0];
+                    newBlocks[id] = -1;
+                }
+            }
+        }
+    }
+
+    // the index of the first entry of a block with a symbol at or after the specified one
+    private static int findEntry(int[] entries, int symbol) {
+        int low = 0;
+        int high = entries.length / ENTRY_INTS;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries[middle * ENTRY_INTS + SYMBOL] < symbol) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
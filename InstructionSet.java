@@ -0,0 +1,62 @@
+/**************************************************************************************************
+ * Compilation: javac InstructionSet.java
+ * Dependencies: OperationTable.java
+ *
+ * The instruction set of the Basic Computer: the memory reference instructions with their opcodes, the
+ * register and IO instructions with their machine code, and the pseudo instructions (assembler
+ * directives), including the macro pseudo instructions. The tables are immutable and built once, so they
+ * are shared by every Assembler, across threads, without any set up per assembly.
+ * **************************************************************************************************/
+
+import java.util.Map;
+import java.util.Set;
+
+final class InstructionSet {
+
+    // The pseudo instructions
+    static final Set<String> PSEUDO_INSTRUCTIONS = Set.of("ORG", "END", "HEX", "DEC");
+
+    // The macro pseudo instructions, which define macros (see MacroTable); they are not three letter
+    // mnemonics, so they are matched before the lookup in the operation table
+    static final String MACRO = "MACRO";
+    static final String ENDM = "ENDM";
+    static final Set<String> MACRO_INSTRUCTIONS = Set.of(MACRO, ENDM);
+
+    // The memory reference instructions and their opcodes
+    static final Map<String, Integer> MEMORY_INSTRUCTIONS = Map.of(
+            "AND", 0b000,
+            "ADD", 0b001,
+            "LDA", 0b010,
+            "STA", 0b011,
+            "BUN", 0b100,
+            "BSA", 0b101,
+            "ISZ", 0b110);
+
+    // The register and IO instructions and their machine code
+    static final Map<String, Integer> NON_MEMORY_INSTRUCTIONS = Map.ofEntries(
+            Map.entry("CLA", 0b0111100000000000),
+            Map.entry("CLE", 0b0111010000000000),
+            Map.entry("CMA", 0b0111001000000000),
+            Map.entry("CME", 0b0111000100000000),
+            Map.entry("CIR", 0b0111000010000000),
+            Map.entry("CIL", 0b0111000001000000),
+            Map.entry("INC", 0b0111000000100000),
+            Map.entry("SPA", 0b0111000000010000),
+            Map.entry("SNA", 0b0111000000001000),
+            Map.entry("SZA", 0b0111000000000100),
+            Map.entry("SZE", 0b0111000000000010),
+            Map.entry("HLT", 0b0111000000000001),
+            Map.entry("INP", 0b1111100000000000),
+            Map.entry("OUT", 0b1111010000000000),
+            Map.entry("SKI", 0b1111001000000000),
+            Map.entry("SKO", 0b1111000100000000),
+            Map.entry("ION", 0b1111000010000000),
+            Map.entry("IOF", 0b1111000001000000));
+
+    // All of the tables above as a perfect hash table on the packed mnemonics
+    static final OperationTable OPERATIONS =
+            new OperationTable(MEMORY_INSTRUCTIONS, NON_MEMORY_INSTRUCTIONS, PSEUDO_INSTRUCTIONS);
+
+    private InstructionSet() {
+    }
+}
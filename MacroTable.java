@@ -0,0 +1,296 @@
+/**************************************************************************************************
+ * Compilation: javac MacroTable.java
+ * Dependencies: SymbolTable.java ParsedProgram.java InstructionSet.java
+ *
+ * The macros defined by a program with the MACRO and ENDM pseudo instructions:
+ * MACRO NAME P1, P2 starts the definition of a macro with its parameters, the lines up to ENDM are its
+ * body, and NAME A, B anywhere after the definition is replaced by the body with every parameter replaced
+ * by its argument. The body is split into its tokens once, when it is defined, so expanding it only
+ * concatenates the pieces and the arguments. The expansion of a macro for a list of arguments is disected
+ * once by the assembler and kept here, so later invocations with the same arguments reuse the disected
+ * lines instead of expanding and disecting the body again. Macros are identified by ids, as symbols are.
+ * **************************************************************************************************/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class MacroTable {
+
+    // the names of the macros, a macro has the id of its name
+    private final SymbolTable names = new SymbolTable();
+    private final List<Macro> macros = new ArrayList<>();
+
+    // the macro whose body is being read, null outside of a definition
+    private Macro definition;
+
+    // a macro: its body as the text between the parameters of every line, and the disected expansions
+    private static final class Macro {
+        final String name;
+        final List<String> parameters;
+
+        // a line is pieces[0] + the argument of parameters[0] + pieces[1] + ... + the last piece
+        final List<String[]> pieces = new ArrayList<>();
+        final List<int[]> lineParameters = new ArrayList<>();
+
+        final Map<List<String>, ParsedProgram> expansions = new HashMap<>();
+
+        Macro(String name, List<String> parameters) {
+            this.name = name;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * Find the macro named by the characters in [start, end) of a line.
+     *
+     * @param line the line containing the name
+     * @param start the index of the first character of the name
+     * @param end the index just after the last character of the name
+     * @return the id of the macro, SymbolTable.NONE if no such macro has been defined
+     */
+    int find(CharSequence line, int start, int end) {
+        return macros.isEmpty() ? SymbolTable.NONE : names.find(line, start, end);
+    }
+
+    /**
+     * The name of a macro.
+     *
+     * @param macro the id of the macro
+     * @return the name
+     */
+    String getName(int macro) {
+        return macros.get(macro).name;
+    }
+
+    /**
+     * Is the body of a macro being read? The lines are then given to addLine instead of being assembled.
+     *
+     * @return true between a MACRO line and its ENDM
+     */
+    boolean isDefining() {
+        return definition != null;
+    }
+
+    /**
+     * The name of the macro whose body is being read.
+     *
+     * @return the name, null outside of a definition
+     */
+    String getDefining() {
+        return definition == null ? null : definition.name;
+    }
+
+    /**
+     * Start the definition of a macro.
+     *
+     * @param line the MACRO line, MACRO followed by the name and the parameters separated by commas
+     * @throws RuntimeException if the name or the parameters are invalid, or the macro is already defined
+     */
+    void define(CharSequence line) {
+        String header = stripComment(line).trim();
+        String rest = header.substring(header.indexOf(InstructionSet.MACRO) + InstructionSet.MACRO.length()).trim();
+        int nameEnd = 0;
+        while (nameEnd < rest.length() && rest.charAt(nameEnd) > ' ') {
+            nameEnd++;
+        }
+        String name = rest.substring(0, nameEnd);
+        if (name.isEmpty() || name.indexOf(',') >= 0 || isInstruction(name)) {
+            throw new RuntimeException("Invalid macro name : " + name);
+        }
+        if (names.find(name) != SymbolTable.NONE) {
+            throw new RuntimeException("Macro already defined : " + name);
+        }
+
+        List<String> parameters = split(rest.substring(nameEnd));
+        for (int i = 0; i < parameters.size(); i++) {
+            String parameter = parameters.get(i);
+            if (parameter.isEmpty() || !isName(parameter) || parameters.indexOf(parameter) != i) {
+                throw new RuntimeException("Invalid parameter of macro " + name + " : " + parameter);
+            }
+        }
+        definition = new Macro(name, parameters);
+    }
+
+    /**
+     * Add a line to the body of the macro being defined, or end the definition if the line is ENDM.
+     *
+     * @param line the line
+     * @throws RuntimeException if the line starts another definition
+     */
+    void addLine(CharSequence line) {
+        String text = line.toString();
+        List<String> pieces = new ArrayList<>();
+        List<Integer> lineParameters = new ArrayList<>();
+
+        // split the line into its tokens, the tokens that are parameters are replaced by the arguments
+        // nothing is replaced in the comment
+        int pieceStart = 0;
+        int index = 0;
+        boolean first = true;
+        while (index < text.length()) {
+            char c = text.charAt(index);
+            if (c <= ' ' || c == ',') {
+                index++;
+                continue;
+            }
+            if (c == '/') {
+                break;
+            }
+            int tokenEnd = index;
+            while (tokenEnd < text.length() && text.charAt(tokenEnd) > ' ' && text.charAt(tokenEnd) != ',') {
+                tokenEnd++;
+            }
+            String token = text.substring(index, tokenEnd);
+            if (first && token.equals(InstructionSet.ENDM)) {
+                endDefinition();
+                return;
+            }
+            if (token.equals(InstructionSet.MACRO)) {
+                throw new RuntimeException("Macro definitions can not be nested : " + definition.name);
+            }
+            first = false;
+
+            int parameter = definition.parameters.indexOf(token);
+            if (parameter >= 0) {
+                pieces.add(text.substring(pieceStart, index));
+                lineParameters.add(parameter);
+                pieceStart = tokenEnd;
+            }
+            index = tokenEnd;
+        }
+        pieces.add(text.substring(pieceStart));
+
+        // blank lines are skipped as they are in the program
+        if (!first) {
+            definition.pieces.add(pieces.toArray(new String[0]));
+            definition.lineParameters.add(lineParameters.stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    // add the macro being defined to the table
+    private void endDefinition() {
+        // the name is new, so its id is the index of the macro
+        names.intern(definition.name);
+        macros.add(definition);
+        definition = null;
+    }
+
+    /**
+     * The arguments of an invocation of a macro, separated by commas.
+     *
+     * @param macro the id of the macro
+     * @param text the arguments as written after the name of the macro, possibly followed by a comment
+     * @return the arguments, one for every parameter
+     * @throws RuntimeException if the number of arguments does not match the parameters of the macro
+     */
+    List<String> getArguments(int macro, CharSequence text) {
+        Macro definition = macros.get(macro);
+        List<String> arguments = split(stripComment(text));
+        if (arguments.size() != definition.parameters.size()) {
+            throw new RuntimeException("Wrong number of arguments of macro " + definition.name + " : " + text);
+        }
+        for (String argument : arguments) {
+            if (argument.isEmpty() || !isName(argument)) {
+                throw new RuntimeException("Invalid argument of macro " + definition.name + " : " + argument);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * The body of a macro with its parameters replaced by arguments.
+     *
+     * @param macro the id of the macro
+     * @param arguments the arguments, as returned by getArguments
+     * @return the lines of the body
+     */
+    List<String> expand(int macro, List<String> arguments) {
+        Macro definition = macros.get(macro);
+        List<String> lines = new ArrayList<>(definition.pieces.size());
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < definition.pieces.size(); i++) {
+            String[] pieces = definition.pieces.get(i);
+            int[] parameters = definition.lineParameters.get(i);
+            line.setLength(0);
+            for (int piece = 0; piece < parameters.length; piece++) {
+                line.append(pieces[piece]).append(arguments.get(parameters[piece]));
+            }
+            lines.add(line.append(pieces[parameters.length]).toString());
+        }
+        return lines;
+    }
+
+    /**
+     * The disected expansion of a macro for a list of arguments, if it has been stored.
+     *
+     * @param macro the id of the macro
+     * @param arguments the arguments
+     * @return the disected lines with locations relative to the invocation, null if they are not stored
+     */
+    ParsedProgram getExpansion(int macro, List<String> arguments) {
+        return macros.get(macro).expansions.get(arguments);
+    }
+
+    /**
+     * Store the disected expansion of a macro for a list of arguments.
+     *
+     * @param macro the id of the macro
+     * @param arguments the arguments
+     * @param expansion the disected lines with locations relative to the invocation
+     */
+    void putExpansion(int macro, List<String> arguments, ParsedProgram expansion) {
+        macros.get(macro).expansions.put(arguments, expansion);
+    }
+
+    /**
+     * Remove all of the macros and their expansions.
+     */
+    void clear() {
+        names.clear();
+        macros.clear();
+        definition = null;
+    }
+
+    // the text before the comment, a token starting with / starts the comment
+    private static String stripComment(CharSequence text) {
+        String line = text.toString();
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '/' && (i == 0 || line.charAt(i - 1) <= ' ' || line.charAt(i - 1) == ',')) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    // the trimmed parts of a list separated by commas, an empty list for blank text
+    private static List<String> split(String text) {
+        List<String> parts = new ArrayList<>();
+        if (text.isBlank()) {
+            return parts;
+        }
+        for (String part : text.split(",", -1)) {
+            parts.add(part.trim());
+        }
+        return parts;
+    }
+
+    // a parameter or an argument is a single token
+    private static boolean isName(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (token.charAt(i) <= ' ' || token.charAt(i) == '/') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // is the name taken by an instruction or a pseudo instruction?
+    private static boolean isInstruction(String name) {
+        return InstructionSet.MEMORY_INSTRUCTIONS.containsKey(name)
+                || InstructionSet.NON_MEMORY_INSTRUCTIONS.containsKey(name)
+                || InstructionSet.PSEUDO_INSTRUCTIONS.contains(name)
+                || InstructionSet.MACRO_INSTRUCTIONS.contains(name);
+    }
+}
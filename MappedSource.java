@@ -0,0 +1,311 @@
+/**************************************************************************************************
+ * Compilation: javac MappedSource.java
+ * Dependencies: none
+ *
+ * A source file that is memory mapped with FileChannel.map and presented to the assembler line by line.
+ * The lines are not turned into Strings: each line is a reused CharSequence over the bytes of the line
+ * (one byte per character), so the assembler tokenizes labels, mnemonics, operands, the I flag and comments
+ * straight from the bytes and creates Strings only for new labels. The line is only valid until the next
+ * line is requested. Lines consisting only of blanks are skipped, but they are counted in the numbers of
+ * the lines, which are the numbers of the lines in the file. Sources that are not files, such as the
+ * programs received by the AssemblerDaemon, are read the same way from a buffer holding their bytes.
+ * A single mapping is limited to 2 GB; files of any size can be read with lines, which maps the file a
+ * window at a time as the lines are iterated, so only one window is mapped at any time.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+final class MappedSource implements Iterable<CharSequence> {
+
+    // the largest window of a file mapped by lines, and so the longest line it can read
+    private static final int WINDOW_BYTES = 1 << 28;
+
+    // the mapped contents of the file and the range of it holding the lines of this source
+    private final ByteBuffer bytes;
+    private final int start;
+    private final int end;
+
+    /**
+     * Map the specified file.
+     *
+     * @param path the file to map
+     * @throws IOException if the file can not be read or is larger than 2 GB
+     */
+    MappedSource(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map : " + path);
+            }
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        start = 0;
+        end = bytes.limit();
+    }
+
+    /**
+     * The lines of a file of any size, as for the iterator of a MappedSource of the file. The file is mapped
+     * a window of up to 256 MB at a time while the lines are iterated; every iteration reads the file again.
+     *
+     * @param path the file to read
+     * @return the lines of the file
+     * @throws IOException if the file can not be read
+     */
+    static Iterable<CharSequence> lines(Path path) throws IOException {
+        long size = Files.size(path);
+        return () -> new WindowIterator(path, size);
+    }
+
+    /**
+     * A source held in a buffer, from the position to the limit of the buffer.
+     *
+     * @param bytes the bytes of the source
+     */
+    MappedSource(ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.limit());
+    }
+
+    // a part of a mapped file
+    private MappedSource(ByteBuffer bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * The size of the source in bytes.
+     *
+     * @return the number of bytes of the source
+     */
+    int byteSize() {
+        return end - start;
+    }
+
+    /**
+     * Split the source into parts of about the same size that consist of whole lines. The parts can be
+     * iterated over concurrently.
+     *
+     * @param parts the number of parts
+     * @return the parts in the order of the file
+     */
+    List<MappedSource> split(int parts) {
+        List<MappedSource> sources = new ArrayList<>(parts);
+        int from = start;
+        for (int i = 1; i <= parts && from < end; i++) {
+            // the part ends just after the line break following its share of the bytes
+            int to = i == parts ? end : Math.max(from, start + (int) ((long) (end - start) * i / parts));
+            while (to < end && bytes.get(to) != '\n') {
+                to++;
+            }
+            to = Math.min(to + 1, end);
+
+            sources.add(new MappedSource(bytes, from, to));
+            from = to;
+        }
+        return sources;
+    }
+
+    /**
+     * The number of line breaks in the source. A part of a split source spans this many lines, so the lines
+     * of the parts after it are numbered from the lines of the parts before them.
+     *
+     * @return the number of line breaks
+     */
+    int countLineBreaks() {
+        return countLineBreaks(bytes, start, end);
+    }
+
+    /**
+     * Iterate over the (non blank) lines of the file. The returned line is reused by the iterator.
+     *
+     * @return an iterator over the lines of the file
+     */
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new Iterator<CharSequence>() {
+            private final Line line = new Line();
+            private int position = skipBlankLines(bytes, start, end);
+            private int number = 1 + countLineBreaks(bytes, start, position);
+
+            @Override
+            public boolean hasNext() {
+                return position < end;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                int lineEnd = position;
+                while (lineEnd < end && bytes.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                line.set(bytes, position, lineEnd);
+                line.number = number;
+                position = skipBlankLines(bytes, lineEnd, end);
+                number += countLineBreaks(bytes, lineEnd, position);
+                return line;
+            }
+        };
+    }
+
+    // the index of the first non blank character at or after index, up to end
+    // this skips blank lines as well as the leading blanks of the next line
+    private static int skipBlankLines(ByteBuffer bytes, int index, int end) {
+        while (index < end && (bytes.get(index) & 0xFF) <= ' ') {
+            index++;
+        }
+        return index;
+    }
+
+    // the number of line breaks in [from, to)
+    private static int countLineBreaks(ByteBuffer bytes, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // the lines of a file mapped a window at a time
+    // a window ends at the end of the file or anywhere in a line; when the iterator reaches the end of a
+    // window that is not the end of the file, the next window is mapped from the start of the line
+    private static final class WindowIterator implements Iterator<CharSequence> {
+        private final Path path;
+        private final long size;
+        private final Line line = new Line();
+
+        // the mapped window, its offset in the file and the position of the next line in it
+        private ByteBuffer window;
+        private long offset;
+        private int position;
+
+        // the number of the next line
+        private int number = 1;
+
+        WindowIterator(Path path, long size) {
+            this.path = path;
+            this.size = size;
+            map(0);
+            skipBlankLines(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset + position < size;
+        }
+
+        @Override
+        public CharSequence next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int lineEnd = position;
+            while (true) {
+                while (lineEnd < window.limit() && window.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd < window.limit() || offset + lineEnd == size) {
+                    break;
+                }
+
+                // the line continues after the window, map the next window from the start of the line
+                if (position == 0) {
+                    throw new UncheckedIOException(new IOException("Line too long at byte " + offset + " : " + path));
+                }
+                lineEnd -= position;
+                map(offset + position);
+                position = 0;
+            }
+            line.set(window, position, lineEnd);
+            line.number = number;
+            skipBlankLines(lineEnd);
+            return line;
+        }
+
+        // skip to the next non blank character, mapping the following windows while only blanks are left
+        private void skipBlankLines(int index) {
+            position = MappedSource.skipBlankLines(window, index, window.limit());
+            number += countLineBreaks(window, index, position);
+            while (position == window.limit() && offset + position < size) {
+                map(offset + position);
+                position = MappedSource.skipBlankLines(window, 0, window.limit());
+                number += countLineBreaks(window, 0, position);
+            }
+        }
+
+        // map the window starting at an offset of the file
+        private void map(long windowOffset) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowOffset,
+                        Math.min(WINDOW_BYTES, size - windowOffset));
+                offset = windowOffset;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * A line of the file as a view of the mapped bytes, with its number. The bytes of the line are bulk
+     * copied into a reused array, as reading the mapping byte by byte through charAt is several times slower.
+     */
+    static final class Line implements CharSequence {
+        private byte[] text = new byte[128];
+        private int length;
+        private int number;
+
+        /**
+         * The number of the line in the source, from 1, counting the blank lines. The lines of a part of a
+         * split source are numbered from the start of the part.
+         *
+         * @return the number of the line
+         */
+        int getNumber() {
+            return number;
+        }
+
+        void set(ByteBuffer bytes, int start, int end) {
+            length = end - start;
+            if (length > text.length) {
+                text = new byte[Math.max(length, 2 * text.length)];
+            }
+            bytes.get(start, text, 0, length);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (text[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(text, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
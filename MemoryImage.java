@@ -0,0 +1,77 @@
+/**************************************************************************************************
+ * Compilation: javac MemoryImage.java
+ * Dependencies: OutputSink.java
+ *
+ * The memory of the Basic Computer (4096 words of 16 bits) as filled by an assembled program. As an
+ * OutputSink it stores every word at its address in a short[4096] and marks the address in an occupancy
+ * bitset, so a program takes about 8 KB no matter how it is formatted, and loaders or simulators can use
+ * the image directly without parsing text.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+
+public class MemoryImage implements OutputSink {
+
+    /**
+     * The number of words in the memory of the Basic Computer.
+     */
+    public static final int SIZE = 4096;
+
+    // the words of the memory and a bit for every address that has been written
+    private final short[] words = new short[SIZE];
+    private final long[] occupied = new long[SIZE / 64];
+
+    @Override
+    public void write(int address, int word) {
+        if (address < 0 || address >= SIZE) {
+            throw new IllegalArgumentException("Address out of range : " + address);
+        }
+        words[address] = (short) word;
+        occupied[address >>> 6] |= 1L << address;
+    }
+
+    /**
+     * Get the words of the memory, addresses that have not been written are 0. The array is not copied.
+     *
+     * @return the 4096 words of the memory
+     */
+    public short[] getImage() {
+        return words;
+    }
+
+    /**
+     * Has a word been written at the specified address?
+     *
+     * @param address the address to test
+     * @return true if the program placed a word at the address
+     */
+    public boolean isOccupied(int address) {
+        return (occupied[address >>> 6] & 1L << address) != 0;
+    }
+
+    /**
+     * Get the addresses at which a word has been written.
+     *
+     * @return a copy of the occupancy bitset
+     */
+    public BitSet getOccupied() {
+        return BitSet.valueOf(occupied);
+    }
+
+    /**
+     * Write the image as 4096 big endian 16 bit words.
+     *
+     * @param channel the channel to write to
+     * @throws IOException if the channel can not be written
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * SIZE);
+        buffer.asShortBuffer().put(words);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**************************************************************************************************
+ * Compilation: javac OccupancyMap.java
+ * Dependencies: MemoryImage.java
+ *
+ * The addresses a program writes words to, to detect the words that land on an address already written
+ * by an earlier line (two ORGs pointing into the same region). The addresses are a 4096 bit bitmap next to
+ * the line that last wrote each address, so checking a word is a single bit test. The overlaps are kept as
+ * triples of ints: the address, the line whose word was overwritten and the line that overwrote it. Lines
+ * are the line numbers in the source file, as in the cross reference listing. The number of overlaps kept
+ * can be limited, so that the memory taken does not grow with the program; the overlaps after the limit
+ * are only counted.
+ * **************************************************************************************************/
+
+import java.util.Arrays;
+
+final class OccupancyMap {
+
+    // a bit for every address that has been written, and the line that wrote it last
+    private final long[] occupied = new long[MemoryImage.SIZE / 64];
+    private final int[] lines = new int[MemoryImage.SIZE];
+
+    // the overlaps that are kept, three ints each, and the number of all overlaps
+    private int[] overlaps = new int[0];
+    private int kept;
+    private int size;
+    private final int limit;
+
+    /**
+     * Create an empty map.
+     *
+     * @param limit the largest number of overlaps kept, the later ones are only counted
+     */
+    OccupancyMap(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Record a word written by a line, and an overlap if an earlier line wrote the same address. Addresses
+     * outside of the memory are not recorded.
+     *
+     * @param address the address of the word
+     * @param line the number of the line of the word
+     */
+    void occupy(int address, int line) {
+        if (address < 0 || address >= MemoryImage.SIZE) {
+            return;
+        }
+        long bit = 1L << address;
+        if ((occupied[address >>> 6] & bit) == 0) {
+            occupied[address >>> 6] |= bit;
+            lines[address] = line;
+            return;
+        }
+
+        if (kept < limit) {
+            if (3 * kept == overlaps.length) {
+                overlaps = Arrays.copyOf(overlaps, Math.max(3 * 8, 2 * overlaps.length));
+            }
+            overlaps[3 * kept] = address;
+            overlaps[3 * kept + 1] = lines[address];
+            overlaps[3 * kept + 2] = line;
+            kept++;
+        }
+        size++;
+        lines[address] = line;
+    }
+
+    /**
+     * The number of words that were written to an address already written.
+     *
+     * @return the number of overlaps
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The number of overlaps that are kept, the first ones up to the limit.
+     *
+     * @return the number of overlaps that can be read
+     */
+    int getKept() {
+        return kept;
+    }
+
+    /**
+     * The address of an overlap.
+     *
+     * @param overlap the index of the overlap, less than getKept
+     * @return the address written twice
+     */
+    int getAddress(int overlap) {
+        return overlaps[3 * overlap];
+    }
+
+    /**
+     * The line whose word was overwritten by an overlap.
+     *
+     * @param overlap the index of the overlap, less than getKept
+     * @return the number of the line
+     */
+    int getEarlierLine(int overlap) {
+        return overlaps[3 * overlap + 1];
+    }
+
+    /**
+     * The line whose word overwrote the word of the earlier line.
+     *
+     * @param overlap the index of the overlap, less than getKept
+     * @return the number of the line
+     */
+    int getLaterLine(int overlap) {
+        return overlaps[3 * overlap + 2];
+    }
+
+    /**
+     * Forget all of the addresses and overlaps.
+     */
+    void clear() {
+        Arrays.fill(occupied, 0);
+        kept = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,142 @@
+/**************************************************************************************************
+ * Compilation: javac OperationTable.java
+ * Dependencies: Assembler.java
+ *
+ * A perfect hash table from the three letter mnemonics of the Basic Computer to their type and machine
+ * code. A mnemonic is packed into an int (8 bits per letter) which is hashed by a multiplier that is chosen
+ * when the table is built so that no two mnemonics share a slot. Classifying an operation is then a single
+ * probe, without creating a string or calling equals.
+ * **************************************************************************************************/
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+final class OperationTable {
+
+    // the result of a lookup of an unknown mnemonic
+    static final int NOT_FOUND = -1;
+
+    // the slots of the table, an empty slot has key 0
+    private final int[] keys;
+    private final int[] values;
+
+    // slot = (key * multiplier) >>> shift
+    private final int multiplier;
+    private final int shift;
+
+    /**
+     * Build the table for the specified instructions.
+     *
+     * @param memoryInstructions the MRI mnemonics with their opcodes
+     * @param nonMemoryInstructions the non MRI mnemonics with their machine code
+     * @param pseudoInstructions the pseudo instruction mnemonics
+     */
+    OperationTable(Map<String, Integer> memoryInstructions, Map<String, Integer> nonMemoryInstructions,
+            Set<String> pseudoInstructions) {
+        int count = memoryInstructions.size() + nonMemoryInstructions.size() + pseudoInstructions.size();
+
+        // a table at least four times as large as the number of mnemonics, so a multiplier is found quickly
+        int bits = 32 - Integer.numberOfLeadingZeros(4 * count - 1);
+        int[] mnemonics = new int[count];
+        int[] encodings = new int[count];
+
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : memoryInstructions.entrySet()) {
+            mnemonics[i] = pack(entry.getKey());
+            encodings[i++] = encode(Assembler.Type.MRI, entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : nonMemoryInstructions.entrySet()) {
+            mnemonics[i] = pack(entry.getKey());
+            encodings[i++] = encode(Assembler.Type.NON_MRI, entry.getValue());
+        }
+        for (String pseudoInstruction : pseudoInstructions) {
+            mnemonics[i] = pack(pseudoInstruction);
+            encodings[i++] = encode(Assembler.Type.PSEUDO, Assembler.getPseudoOperation(pseudoInstruction));
+        }
+
+        // try odd multipliers until every mnemonic gets a slot of its own
+        shift = 32 - bits;
+        keys = new int[1 << bits];
+        values = new int[1 << bits];
+        int candidate = 0x9E3779B1;
+        while (!fill(mnemonics, encodings, candidate)) {
+            candidate += 0x3C6EF372;
+        }
+        multiplier = candidate;
+    }
+
+    // put all of the mnemonics in the table using the multiplier, false if two of them collide
+    private boolean fill(int[] mnemonics, int[] encodings, int candidate) {
+        Arrays.fill(keys, 0);
+        for (int i = 0; i < mnemonics.length; i++) {
+            int slot = mnemonics[i] * candidate >>> shift;
+            if (keys[slot] != 0) {
+                return false;
+            }
+            keys[slot] = mnemonics[i];
+            values[slot] = encodings[i];
+        }
+        return true;
+    }
+
+    /**
+     * Look up the mnemonic formed by the characters in [start, end) of an instruction.
+     *
+     * @param instruction the instruction containing the mnemonic
+     * @param start the index of the first character of the mnemonic
+     * @param end the index just after the last character of the mnemonic
+     * @return the type and machine code of the operation as packed by encode, or NOT_FOUND
+     */
+    int lookup(CharSequence instruction, int start, int end) {
+        if (end - start != 3) {
+            return NOT_FOUND;
+        }
+
+        char first = instruction.charAt(start);
+        char second = instruction.charAt(start + 1);
+        char third = instruction.charAt(start + 2);
+        if ((first | second | third) > 0xFF) {
+            return NOT_FOUND;
+        }
+
+        int key = pack(first, second, third);
+        int slot = key * multiplier >>> shift;
+        return keys[slot] == key ? values[slot] : NOT_FOUND;
+    }
+
+    /**
+     * The type of a looked up operation.
+     *
+     * @param encoding the result of lookup
+     * @return the type of the operation
+     */
+    static Assembler.Type getType(int encoding) {
+        return Assembler.TYPES[encoding >>> 16];
+    }
+
+    /**
+     * The machine code of a looked up operation: the opcode of an MRI, the instruction of a non MRI or the
+     * pseudo instruction constant of a pseudo instruction.
+     *
+     * @param encoding the result of lookup
+     * @return the machine code of the operation
+     */
+    static int getOperation(int encoding) {
+        return encoding & 0xFFFF;
+    }
+
+    // pack the type and the machine code of an operation into an int
+    private static int encode(Assembler.Type type, int operation) {
+        return type.ordinal() << 16 | operation;
+    }
+
+    // pack a three letter mnemonic into an int
+    private static int pack(String mnemonic) {
+        return pack(mnemonic.charAt(0), mnemonic.charAt(1), mnemonic.charAt(2));
+    }
+
+    private static int pack(char first, char second, char third) {
+        return first << 16 | second << 8 | third;
+    }
+}
@@ -0,0 +1,127 @@
+/**************************************************************************************************
+ * Compilation: javac OutputSink.java
+ * Dependencies: BinaryEncoder.java
+ *
+ * The destination of the machine code produced by the assembler. The assembler hands every word to the
+ * sink as soon as it is final, together with its address, so the output does not have to be collected in
+ * memory first. A sink is either a callback (this is a functional interface) or one of the sinks created by
+ * the static methods below, which write the words in the text format of a.txt: the address in binary
+ * without leading zeros, a space and the 16 bit word in binary.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+@FunctionalInterface
+public interface OutputSink {
+
+    /**
+     * Receive a word of machine code.
+     *
+     * @param address the address of the word in memory
+     * @param word the 16 bit word
+     */
+    void write(int address, int word);
+
+    /**
+     * Called by the assembler after the last word has been written. Sinks that buffer their output write
+     * it out here, the underlying channel or stream is not closed.
+     */
+    default void finish() {
+    }
+
+    /**
+     * A sink that adds the words as lines of text to a list.
+     *
+     * @param lines the list to add to
+     * @return the sink
+     */
+    static OutputSink toList(List<String> lines) {
+        char[] line = new char[32 + 1 + 16];
+        return (address, word) -> {
+            int length = BinaryEncoder.writeUnpadded(address, line, 0);
+            line[length++] = ' ';
+            length = BinaryEncoder.write(word, 16, line, length);
+            lines.add(new String(line, 0, length));
+        };
+    }
+
+    /**
+     * A sink that writes the words as lines of text to a channel, such as a FileChannel.
+     *
+     * @param channel the channel to write to
+     * @return the sink
+     */
+    static OutputSink toChannel(WritableByteChannel channel) {
+        return new ChannelSink(channel);
+    }
+
+    /**
+     * A sink that writes the words as lines of text to a stream.
+     *
+     * @param stream the stream to write to
+     * @return the sink
+     */
+    static OutputSink toStream(OutputStream stream) {
+        return new ChannelSink(Channels.newChannel(stream));
+    }
+
+    /**
+     * A sink that writes the words as lines of text to the standard output.
+     *
+     * @return the sink
+     */
+    static OutputSink toStandardOutput() {
+        return toStream(System.out);
+    }
+
+    // writes the lines through a buffer that is written to the channel whenever it is full
+    final class ChannelSink implements OutputSink {
+        private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private final byte[] line = new byte[32 + 1 + 16 + LINE_SEPARATOR.length];
+
+        private ChannelSink(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int address, int word) {
+            int length = BinaryEncoder.writeUnpadded(address, line, 0);
+            line[length++] = ' ';
+            length = BinaryEncoder.write(word, 16, line, length);
+            System.arraycopy(LINE_SEPARATOR, 0, line, length, LINE_SEPARATOR.length);
+            length += LINE_SEPARATOR.length;
+
+            if (buffer.remaining() < length) {
+                drain();
+            }
+            buffer.put(line, 0, length);
+        }
+
+        @Override
+        public void finish() {
+            drain();
+        }
+
+        // write the buffered lines to the channel
+        private void drain() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
+    }
+}
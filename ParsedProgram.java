@@ -0,0 +1,297 @@
+/**************************************************************************************************
+ * Compilation: javac ParsedProgram.java
+ * Dependencies: Assembler.java SymbolTable.java
+ *
+ * The intermediate representation of a program as produced by the first pass of the assembler. Every
+ * line up to (and excluding) END is stored once, already disected, as a fixed width record of a direct
+ * (off heap) buffer. The second pass translates the records directly instead of parsing the source again.
+ * A record is six ints: the type, the indirect bit and the operation packed into one, then the operand,
+ * the location, the symbol, the label and the number of the source line. As the records are not Java
+ * objects nor arrays on the heap, a large program adds no work to the garbage collector, only the buffer
+ * object itself is on the heap.
+ * The buffer is limited by -XX:MaxDirectMemorySize, which is the maximum heap size by default. Short
+ * lived programs (the lines of an edit, of a macro expansion or of a chunk of the parallel first pass) are
+ * kept in a heap buffer instead: allocating a direct buffer is slow, and its memory is only freed once the
+ * buffer object is collected.
+ * **************************************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+class ParsedProgram {
+
+    // the layout of a record, the offsets of its fields in bytes
+    // the header holds the ordinal of the type in bits 0-1, the indirect bit in bit 2 and the operation
+    // (at most 16 bits) in bits 16-31; symbols and labels are ids in the symbol table of the assembler
+    private static final int HEADER = 0;
+    private static final int OPERAND = 4;
+    private static final int LOCATION = 8;
+    private static final int SYMBOL = 12;
+    private static final int LABEL = 16;
+    private static final int LINE = 20;
+    private static final int RECORD_BYTES = 24;
+
+    private static final int INDIRECT = 1 << 2;
+    private static final Assembler.Type[] TYPES = Assembler.Type.values();
+
+    // the records, in the native byte order, in a direct buffer unless the program is short lived
+    private ByteBuffer records;
+    private final boolean direct;
+
+    // the number of entries
+    private int size;
+
+    /**
+     * Create an empty program.
+     */
+    ParsedProgram() {
+        this(64);
+    }
+
+    /**
+     * Create an empty program with room for the specified number of lines.
+     *
+     * @param capacity the expected number of lines
+     */
+    ParsedProgram(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * Create an empty program with room for the specified number of lines, in a direct or a heap buffer.
+     *
+     * @param capacity the expected number of lines
+     * @param direct true for a direct (off heap) buffer, false for a short lived program
+     */
+    ParsedProgram(int capacity, boolean direct) {
+        this.direct = direct;
+        records = allocate(Math.max(capacity, 1));
+    }
+
+    /**
+     * The number of lines in the program.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Remove all of the entries, keeping the memory of the buffer.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Append a disected instruction to the program.
+     *
+     * @param instruction the instruction to append
+     */
+    void add(Assembler.Instruction instruction) {
+        if (size == capacity()) {
+            grow(size + 1);
+        }
+
+        int record = size * RECORD_BYTES;
+        records.putInt(record + HEADER, instruction.type.ordinal() | (instruction.indirect ? INDIRECT : 0)
+                | instruction.operation << 16);
+        records.putInt(record + OPERAND, instruction.operand);
+        records.putInt(record + LOCATION, instruction.location);
+        records.putInt(record + SYMBOL, instruction.symbol);
+        records.putInt(record + LABEL, instruction.label);
+        records.putInt(record + LINE, instruction.line);
+        size++;
+    }
+
+    /**
+     * Load an entry of the program into an instruction record.
+     *
+     * @param index the index of the entry
+     * @param instruction the record to fill
+     */
+    void get(int index, Assembler.Instruction instruction) {
+        int record = index * RECORD_BYTES;
+        int header = records.getInt(record + HEADER);
+        instruction.type = TYPES[header & 3];
+        instruction.operation = header >>> 16;
+        instruction.operand = records.getInt(record + OPERAND);
+        instruction.indirect = (header & INDIRECT) != 0;
+        instruction.location = records.getInt(record + LOCATION);
+        instruction.symbol = records.getInt(record + SYMBOL);
+        instruction.label = records.getInt(record + LABEL);
+        instruction.line = records.getInt(record + LINE);
+    }
+
+    /**
+     * Append the entries of another program, adding an offset to the locations of its first entries and to
+     * the numbers of the source lines of all of them. The other program refers to the symbols of another
+     * symbol table, its ids are translated.
+     *
+     * @param other the program to append
+     * @param relativeLines the number of entries (from the start of other) whose location is relative
+     * @param locationOffset the offset to add to the relative locations
+     * @param lineOffset the offset to add to the line numbers
+     * @param ids the ids of the symbols of the other program in the symbol table of this program, null if
+     *            both programs refer to the same symbol table
+     */
+    void append(ParsedProgram other, int relativeLines, int locationOffset, int lineOffset, int[] ids) {
+        if (size + other.size > capacity()) {
+            grow(size + other.size);
+        }
+
+        records.put(size * RECORD_BYTES, other.records, 0, other.size * RECORD_BYTES);
+
+        for (int i = size; i < size + relativeLines; i++) {
+            setLocation(i, getLocation(i) + locationOffset);
+        }
+        for (int i = size; lineOffset != 0 && i < size + other.size; i++) {
+            records.putInt(i * RECORD_BYTES + LINE, getLine(i) + lineOffset);
+        }
+        for (int i = size; ids != null && i < size + other.size; i++) {
+            int record = i * RECORD_BYTES;
+            int symbol = records.getInt(record + SYMBOL);
+            if (symbol != SymbolTable.NONE) {
+                records.putInt(record + SYMBOL, ids[symbol]);
+            }
+            int label = records.getInt(record + LABEL);
+            if (label != SymbolTable.NONE) {
+                records.putInt(record + LABEL, ids[label]);
+            }
+        }
+        size += other.size;
+    }
+
+    /**
+     * Replace the entries [from, to) by the entries of another program, moving the entries after them if
+     * their number changes.
+     *
+     * @param from the index of the first entry to replace
+     * @param to the index just after the last entry to replace
+     * @param other the replacing entries
+     */
+    void replace(int from, int to, ParsedProgram other) {
+        if (size - (to - from) + other.size > capacity()) {
+            grow(size - (to - from) + other.size);
+        }
+
+        // the bulk copies within the buffer handle overlapping ranges
+        int tail = size - to;
+        int newTo = from + other.size;
+        if (newTo != to) {
+            records.put(newTo * RECORD_BYTES, records, to * RECORD_BYTES, tail * RECORD_BYTES);
+        }
+        records.put(from * RECORD_BYTES, other.records, 0, other.size * RECORD_BYTES);
+
+        size = newTo + tail;
+    }
+
+    /**
+     * The label defined by an entry.
+     *
+     * @param index the index of the entry
+     * @return the id of the label, SymbolTable.NONE if the entry defines none
+     */
+    int getLabel(int index) {
+        return records.getInt(index * RECORD_BYTES + LABEL);
+    }
+
+    /**
+     * Define a label at an entry.
+     *
+     * @param index the index of the entry
+     * @param label the id of the label
+     */
+    void setLabel(int index, int label) {
+        records.putInt(index * RECORD_BYTES + LABEL, label);
+    }
+
+    /**
+     * The source line of an entry.
+     *
+     * @param index the index of the entry
+     * @return the number of the line in the source, from 1
+     */
+    int getLine(int index) {
+        return records.getInt(index * RECORD_BYTES + LINE);
+    }
+
+    /**
+     * The location of an entry.
+     *
+     * @param index the index of the entry
+     * @return the memory address of the entry
+     */
+    int getLocation(int index) {
+        return records.getInt(index * RECORD_BYTES + LOCATION);
+    }
+
+    /**
+     * The number of machine words of the entries [from, to), every entry is a word except ORG.
+     *
+     * @param from the index of the first entry
+     * @param to the index just after the last entry
+     * @return the number of words
+     */
+    int countWords(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (isWord(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Is an entry translated into a machine word? Every entry is a word except ORG.
+     *
+     * @param index the index of the entry
+     * @return true if the entry is a word
+     */
+    boolean isWord(int index) {
+        int header = records.getInt(index * RECORD_BYTES + HEADER);
+        return header != (Assembler.Type.PSEUDO.ordinal() | Assembler.ORG << 16);
+    }
+
+    /**
+     * Move an entry to another location.
+     *
+     * @param index the index of the entry
+     * @param location the new memory address of the entry
+     */
+    void setLocation(int index, int location) {
+        records.putInt(index * RECORD_BYTES + LOCATION, location);
+    }
+
+    // the number of records the buffer has room for
+    private int capacity() {
+        return records.capacity() / RECORD_BYTES;
+    }
+
+    // double the capacity of the buffer until it has room for the number of records, copying the records
+    // the old buffer is freed once it is collected; as clear keeps the buffer, the program of an assembler
+    // only grows while it assembles a program larger than the ones before
+    private void grow(int needed) {
+        long capacity = capacity();
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        if (capacity * RECORD_BYTES > Integer.MAX_VALUE) {
+            capacity = Integer.MAX_VALUE / RECORD_BYTES;
+            if (capacity < needed) {
+                throw new IllegalStateException("The program has too many lines : " + needed);
+            }
+        }
+        ByteBuffer grown = allocate((int) capacity);
+        grown.put(0, records, 0, size * RECORD_BYTES);
+        records = grown;
+    }
+
+    // a buffer for a number of records
+    private ByteBuffer allocate(int capacity) {
+        int bytes = capacity * RECORD_BYTES;
+        return (direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,307 @@
+/**************************************************************************************************
+ * Compilation: javac ProgramGenerator.java
+ * Execution: java ProgramGenerator [options] lines fileName.txt
+ * Dependencies: none
+ *
+ * A generator of synthetic, valid Basic Computer programs for benchmarks and test corpora. The programs
+ * are deterministic: the same parameters and seed always give the same program. The parameters are
+ * --seed n -> the seed of the random numbers, 1 by default
+ * --segments n -> the number of ORG segments the code is split into, 1 by default
+ * --labels f -> the fraction of the code lines that define a label, 0 by default; BUN and BSA jump to
+ *               these labels (forward and backward), the other MRIs refer to the data words
+ * --data n -> the number of data words (and their labels) after the code, 64 by default
+ * --mix m,n,d,h -> the relative weights of MRIs, non MRIs, DEC and HEX in the code, 4,2,1,1 by default
+ * --indirect f -> the fraction of the MRIs with indirect addressing, 0.25 by default
+ * --comments f -> the fraction of the lines with a comment, 0.125 by default
+ *
+ * A program is laid out as its segments, each starting at its own origin and filling its share of the
+ * memory below the data words, then the data words and END. A segment that is longer than its share of
+ * the memory starts again at its origin with another ORG, so programs of any size stay within the 4096
+ * words of memory (the later words overwrite the earlier ones).
+ * **************************************************************************************************/
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+public final class ProgramGenerator {
+
+    // the mnemonics the programs are made of
+    private static final String[] MEMORY_OPERATIONS = {"AND", "ADD", "LDA", "STA", "BUN", "BSA", "ISZ"};
+    private static final String[] NON_MEMORY_OPERATIONS = {"CLA", "CLE", "CMA", "CME", "CIR", "CIL", "INC",
+            "SPA", "SNA", "SZA", "SZE", "HLT", "INP", "OUT", "SKI", "SKO", "ION", "IOF"};
+
+    private long seed = 1;
+    private int segments = 1;
+    private double labels = 0;
+    private int data = 64;
+    private int[] mix = {4, 2, 1, 1};
+    private double indirect = 0.25;
+    private double comments = 0.125;
+
+    /**
+     * Set the seed of the random numbers.
+     *
+     * @param seed the seed
+     * @return this generator
+     */
+    public ProgramGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Set the number of ORG segments the code is split into.
+     *
+     * @param segments the number of segments, at least 1
+     * @return this generator
+     */
+    public ProgramGenerator setSegments(int segments) {
+        this.segments = segments;
+        return this;
+    }
+
+    /**
+     * Set the fraction of the code lines that define a label.
+     *
+     * @param labels the label density, from 0 to 1
+     * @return this generator
+     */
+    public ProgramGenerator setLabels(double labels) {
+        this.labels = labels;
+        return this;
+    }
+
+    /**
+     * Set the number of data words after the code, which all of the MRIs other than BUN and BSA refer to.
+     *
+     * @param data the number of data words, at least 1
+     * @return this generator
+     */
+    public ProgramGenerator setData(int data) {
+        this.data = data;
+        return this;
+    }
+
+    /**
+     * Set the relative weights of the kinds of code lines.
+     *
+     * @param memory the weight of MRIs
+     * @param nonMemory the weight of register and IO instructions
+     * @param dec the weight of DEC
+     * @param hex the weight of HEX
+     * @return this generator
+     */
+    public ProgramGenerator setMix(int memory, int nonMemory, int dec, int hex) {
+        this.mix = new int[] {memory, nonMemory, dec, hex};
+        return this;
+    }
+
+    /**
+     * Set the fraction of the MRIs with indirect addressing.
+     *
+     * @param indirect the indirect addressing ratio, from 0 to 1
+     * @return this generator
+     */
+    public ProgramGenerator setIndirect(double indirect) {
+        this.indirect = indirect;
+        return this;
+    }
+
+    /**
+     * Set the fraction of the lines with a comment.
+     *
+     * @param comments the comment ratio, from 0 to 1
+     * @return this generator
+     */
+    public ProgramGenerator setComments(double comments) {
+        this.comments = comments;
+        return this;
+    }
+
+    /**
+     * Apply an option as described above, such as --segments 4.
+     *
+     * @param args the arguments
+     * @param index the index of the option in the arguments, its value follows it
+     * @return the index of the argument after the value
+     * @throws IllegalArgumentException if the option is not a generator option
+     */
+    public int parseOption(String[] args, int index) {
+        String value = args[index + 1];
+        switch (args[index]) {
+            case "--seed":
+                setSeed(Long.parseLong(value));
+                break;
+            case "--segments":
+                setSegments(Integer.parseInt(value));
+                break;
+            case "--labels":
+                setLabels(Double.parseDouble(value));
+                break;
+            case "--data":
+                setData(Integer.parseInt(value));
+                break;
+            case "--mix":
+                String[] weights = value.split(",");
+                if (weights.length != 4) {
+                    throw new IllegalArgumentException("The mix needs four weights : " + value);
+                }
+                setMix(Integer.parseInt(weights[0]), Integer.parseInt(weights[1]), Integer.parseInt(weights[2]),
+                        Integer.parseInt(weights[3]));
+                break;
+            case "--indirect":
+                setIndirect(Double.parseDouble(value));
+                break;
+            case "--comments":
+                setComments(Double.parseDouble(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option : " + args[index]);
+        }
+        return index + 2;
+    }
+
+    /**
+     * Generate a program.
+     *
+     * @param lines the number of lines of the program, including its ORGs, data words and END
+     * @return the program as a list of strings
+     */
+    public List<String> generate(int lines) {
+        List<String> program = new ArrayList<>(lines);
+        generate(lines, program::add);
+        return program;
+    }
+
+    /**
+     * Generate a program into a file, a line at a time, so that programs larger than the heap can be written.
+     *
+     * @param lines the number of lines of the program, including its ORGs, data words and END
+     * @param file the file to write
+     * @throws IOException if the file can not be written
+     */
+    public void write(int lines, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            generate(lines, line -> {
+                try {
+                    writer.write(line);
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // generate the lines of a program, in order
+    private void generate(int lines, Consumer<String> program) {
+        int codeSpace = 4096 - data;
+        int segmentSpace = codeSpace / segments;
+        if (segments < 1 || data < 1 || segmentSpace < 1) {
+            throw new IllegalArgumentException("The segments and the data words do not fit in the memory");
+        }
+        // the ORG and the data words of the data segment and END
+        int codeLines = Math.max(lines - data - 2, segments);
+
+        // every labelSpacing-th instruction of the code defines a label, the labels are numbered in order
+        int labelSpacing = labels > 0 ? Math.max(1, (int) Math.round(1 / labels)) : 0;
+        int labelCount = labelSpacing == 0 ? 0 : (countInstructions(codeLines, segmentSpace) - 1) / labelSpacing + 1;
+
+        SplittableRandom random = new SplittableRandom(seed);
+        int weights = mix[0] + mix[1] + mix[2] + mix[3];
+        StringBuilder line = new StringBuilder();
+        int instruction = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            int origin = segment * segmentSpace;
+            int segmentLines = codeLines / segments + (segment < codeLines % segments ? 1 : 0);
+
+            int location = segmentSpace;
+            for (int i = 0; i < segmentLines; i++) {
+                if (location == segmentSpace) {
+                    // the segment starts, or starts again at its origin
+                    program.accept("ORG " + origin);
+                    location = 0;
+                    continue;
+                }
+
+                line.setLength(0);
+                if (labelSpacing > 0 && instruction % labelSpacing == 0) {
+                    line.append('L').append(instruction / labelSpacing).append(", ");
+                }
+
+                int kind = random.nextInt(weights);
+                if (kind < mix[0]) {
+                    String operation = MEMORY_OPERATIONS[random.nextInt(MEMORY_OPERATIONS.length)];
+                    line.append(operation).append(' ');
+                    boolean jump = operation.equals("BUN") || operation.equals("BSA");
+                    if (jump && labelCount > 0) {
+                        line.append('L').append(random.nextInt(labelCount));
+                    } else {
+                        line.append('D').append(random.nextInt(data));
+                    }
+                    if (random.nextDouble() < indirect) {
+                        line.append(" I");
+                    }
+                } else if (kind < mix[0] + mix[1]) {
+                    line.append(NON_MEMORY_OPERATIONS[random.nextInt(NON_MEMORY_OPERATIONS.length)]);
+                } else if (kind < mix[0] + mix[1] + mix[2]) {
+                    line.append("DEC ").append(random.nextInt(65536) - 32768);
+                } else {
+                    line.append("HEX ").append(Integer.toHexString(random.nextInt(65536)).toUpperCase());
+                }
+                if (random.nextDouble() < comments) {
+                    line.append(" / generated");
+                }
+
+                program.accept(line.toString());
+                instruction++;
+                location++;
+            }
+        }
+
+        // the data words that the MRIs refer to
+        program.accept("ORG " + codeSpace);
+        for (int i = 0; i < data; i++) {
+            program.accept("D" + i + ", DEC " + i);
+        }
+        program.accept("END");
+    }
+
+    // the number of instructions (code lines that are not ORG) of the segments, to number the labels
+    private int countInstructions(int codeLines, int segmentSpace) {
+        int count = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            int segmentLines = codeLines / segments + (segment < codeLines % segments ? 1 : 0);
+            // an ORG for every segmentSpace instructions, starting with the first line
+            int orgs = (segmentLines + segmentSpace) / (segmentSpace + 1);
+            count += segmentLines - orgs;
+        }
+        return count;
+    }
+
+    /**
+     * Write a generated program to a file.
+     *
+     * @param args the options described above, the number of lines and the file
+     * @throws IOException if the file can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        ProgramGenerator generator = new ProgramGenerator();
+        int argument = 0;
+        while (argument < args.length && args[argument].startsWith("--")) {
+            argument = generator.parseOption(args, argument);
+        }
+        generator.write(Integer.parseInt(args[argument].replace("_", "")), Paths.get(args[argument + 1]));
+    }
+}
@@ -0,0 +1,277 @@
+/**************************************************************************************************
+ * Compilation: javac ReassembleCheck.java
+ * Execution: java ReassembleCheck [--edits n] [--seed n] [fileName.txt ...]
+ * Dependencies: Assembler.java ProgramGenerator.java
+ *
+ * Checks Assembler.reassemble against assembling the whole program again. Every program is assembled
+ * once, then edited many times in place with random edits: lines deleted, lines copied from elsewhere in
+ * the program (which defines their labels twice), new lines with new labels, MRIs referring to existing
+ * and to undefined labels, and ORGs. After every edit the output must be that of a new Assembler given the
+ * whole edited program, and the cross reference of the labels around the edit must be the same as well.
+ * An edit that the full assembly rejects must be rejected by reassemble, leaving its output unchanged.
+ *
+ * The programs are the files given as arguments, or else the programs in the corpus directory, test_1.txt,
+ * test_2.txt and three programs made by ProgramGenerator, the largest of which spans several blocks of
+ * the cross reference index. Blank lines are dropped, so that the lines of a program are the lines that
+ * reassemble numbers. The edits are made from --seed (1 by default), --edits of them per program (1000 by
+ * default). The first mismatch is printed with its edit, and the exit status is then 1.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+public class ReassembleCheck {
+
+    // the regression programs used when no file is given
+    private static final String CORPUS = "corpus";
+    private static final String[] TESTS = {"test_1.txt", "test_2.txt"};
+
+    // the mnemonics of the new lines
+    private static final String[] MEMORY_OPERATIONS = {"AND", "ADD", "LDA", "STA", "BUN", "BSA", "ISZ"};
+    private static final String[] NON_MEMORY_OPERATIONS = {"CLA", "CLE", "CMA", "CME", "CIR", "CIL", "INC",
+            "SPA", "SNA", "SZA", "SZE", "HLT"};
+
+    // the most lines an edit replaces or adds
+    private static final int MAX_EDIT_LINES = 4;
+
+    // the highest origin of a new ORG, below the end of memory so that the programs still fit
+    private static final int MAX_ORIGIN = 3000;
+
+    private final SplittableRandom random;
+
+    // the labels defined by the new lines are numbered, so they never clash with those of the programs
+    private int newLabels;
+
+    private ReassembleCheck(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    // the lines of a program file up to END, without blank lines
+    private static List<String> read(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.ISO_8859_1)) {
+            if (line.trim().startsWith("END")) {
+                break;
+            }
+            if (!line.trim().isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    // the label defined by a line, null if it has none
+    private static String getLabel(String line) {
+        int comma = line.indexOf(',');
+        int comment = line.indexOf('/');
+        return comma < 0 || comment >= 0 && comment < comma ? null : line.substring(0, comma).trim();
+    }
+
+    // the labels defined by the lines of a program, with repetitions
+    private static List<String> getLabels(List<String> lines) {
+        List<String> labels = new ArrayList<>();
+        for (String line : lines) {
+            String label = getLabel(line);
+            if (label != null) {
+                labels.add(label);
+            }
+        }
+        return labels;
+    }
+
+    // the whole program, with END after its lines
+    private static List<String> withEnd(List<String> lines) {
+        List<String> program = new ArrayList<>(lines);
+        program.add("END");
+        return program;
+    }
+
+    // a random new line, an MRI refers to one of the labels or, rarely, to an undefined one
+    private String newLine(List<String> lines, List<String> labels) {
+        StringBuilder line = new StringBuilder();
+        int kind = random.nextInt(16);
+        if (kind == 0) {
+            return "ORG " + random.nextInt(MAX_ORIGIN);
+        } else if (kind == 1 && !lines.isEmpty()) {
+            // a copy of another line, which defines its label again
+            return lines.get(random.nextInt(lines.size()));
+        }
+
+        if (random.nextInt(4) == 0) {
+            line.append('E').append(newLabels++).append(", ");
+        }
+        if (kind < 8) {
+            String symbol = labels.isEmpty() || random.nextInt(32) == 0 ? "UNDEFINED"
+                    : labels.get(random.nextInt(labels.size()));
+            line.append(MEMORY_OPERATIONS[random.nextInt(MEMORY_OPERATIONS.length)]).append(' ').append(symbol);
+            if (random.nextInt(4) == 0) {
+                line.append(" I");
+            }
+        } else if (kind < 12) {
+            line.append(NON_MEMORY_OPERATIONS[random.nextInt(NON_MEMORY_OPERATIONS.length)]);
+        } else if (kind < 14) {
+            line.append("DEC ").append(random.nextInt(-32768, 32768));
+        } else {
+            line.append("HEX ").append(Integer.toHexString(random.nextInt(0x10000)).toUpperCase());
+        }
+        return line.toString();
+    }
+
+    // the full assembly of a program, null if it is rejected
+    private static List<String> assemble(List<String> lines) {
+        try {
+            return new Assembler().assemble(withEnd(lines));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // compare the cross reference of a label of the edited assembler with that of a full assembly
+    private static boolean sameReferences(Assembler edited, Assembler full, String label) {
+        return Arrays.equals(edited.getReferenceLines(label), full.getReferenceLines(label))
+                && Arrays.equals(edited.getReferenceAddresses(label), full.getReferenceAddresses(label));
+    }
+
+    // edit a program again and again, return false at the first mismatch
+    private boolean check(String name, List<String> program, int edits) {
+        List<String> lines = new ArrayList<>(program);
+        Assembler assembler = new Assembler();
+        try {
+            assembler.assemble(withEnd(lines));
+        } catch (RuntimeException e) {
+            System.out.println(name + " : not a valid program : " + e.getMessage());
+            return false;
+        }
+
+        int rejected = 0;
+        for (int edit = 0; edit < edits; edit++) {
+            int from = random.nextInt(lines.size() + 1);
+            int to = Math.min(lines.size(), from + random.nextInt(MAX_EDIT_LINES + 1));
+            List<String> labels = getLabels(lines);
+            List<String> replacement = new ArrayList<>();
+            int count = random.nextInt(MAX_EDIT_LINES + 1);
+            for (int i = 0; i < count; i++) {
+                replacement.add(newLine(lines, labels));
+            }
+
+            List<String> edited = new ArrayList<>(lines.subList(0, from));
+            edited.addAll(replacement);
+            edited.addAll(lines.subList(to, lines.size()));
+            List<String> expected = assemble(edited);
+            List<String> before = new ArrayList<>(assembler.getOutput());
+
+            String description = name + " edit " + edit + " : lines " + from + " to " + to + " replaced by "
+                    + replacement;
+            List<String> output;
+            try {
+                output = new ArrayList<>(assembler.reassemble(from, to, replacement));
+            } catch (RuntimeException e) {
+                if (expected != null) {
+                    System.out.println(description + " : rejected by reassemble only : " + e);
+                    return false;
+                }
+                if (!assembler.getOutput().equals(before)) {
+                    System.out.println(description + " : the output changed when the edit was rejected");
+                    return false;
+                }
+                rejected++;
+                continue;
+            }
+            if (expected == null) {
+                System.out.println(description + " : accepted by reassemble only");
+                return false;
+            }
+            if (!output.equals(expected) || !assembler.getOutput().equals(expected)) {
+                System.out.println(description + " : the output differs from a full assembly");
+                return false;
+            }
+
+            // the labels of the replaced and the new lines, and a label anywhere else
+            Assembler full = new Assembler();
+            full.assemble(withEnd(edited));
+            List<String> checked = getLabels(replacement);
+            checked.addAll(getLabels(lines.subList(from, to)));
+            lines = edited;
+            List<String> allLabels = getLabels(lines);
+            if (!allLabels.isEmpty()) {
+                checked.add(allLabels.get(random.nextInt(allLabels.size())));
+            }
+            for (String label : checked) {
+                if (!sameReferences(assembler, full, label)) {
+                    System.out.println(description + " : the cross reference of " + label
+                            + " differs from a full assembly");
+                    return false;
+                }
+            }
+        }
+
+        System.out.printf("%-40s %8d lines %8d edits %8d rejected%n", name, program.size(), edits, rejected);
+        return true;
+    }
+
+    /**
+     * Check reassemble on the programs given as arguments, or on the corpus.
+     *
+     * @param args --edits n, --seed n and the files of the programs
+     * @throws IOException if a program can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        int edits = 1000;
+        long seed = 1;
+        List<Path> files = new ArrayList<>();
+        for (int argument = 0; argument < args.length; argument++) {
+            switch (args[argument]) {
+                case "--edits":
+                    edits = Integer.parseInt(args[++argument]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++argument]);
+                    break;
+                default:
+                    files.add(Paths.get(args[argument]));
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        List<List<String>> programs = new ArrayList<>();
+        if (files.isEmpty()) {
+            try (Stream<Path> corpus = Files.list(Paths.get(CORPUS))) {
+                corpus.filter(file -> file.toString().endsWith(".txt")).sorted().forEach(files::add);
+            }
+            for (String test : TESTS) {
+                files.add(Paths.get(test));
+            }
+
+            names.add("generated 300 lines");
+            programs.add(new ProgramGenerator().setLabels(0.1).setData(16).generate(300));
+            names.add("generated 3000 lines, 4 segments");
+            programs.add(new ProgramGenerator().setSeed(2).setSegments(4).setLabels(0.05).generate(3000));
+            names.add("generated 5000 lines");
+            programs.add(new ProgramGenerator().setSeed(3).setLabels(0.02).generate(5000));
+        }
+        for (int i = 0; i < files.size(); i++) {
+            names.add(i, files.get(i).toString());
+            programs.add(i, read(files.get(i)));
+        }
+
+        ReassembleCheck checker = new ReassembleCheck(seed);
+        for (int i = 0; i < programs.size(); i++) {
+            List<String> program = programs.get(i);
+            if (i >= files.size()) {
+                // the generated programs end with END as well
+                program = program.subList(0, program.size() - 1);
+            }
+            if (!checker.check(names.get(i), program, edits)) {
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**************************************************************************************************
+ * Compilation: javac ScalingBenchmark.java
+ * Execution: java -Xmx4g ScalingBenchmark [generator options] [maxLines]
+ * Dependencies: Assembler.java ProgramGenerator.java
+ *
+ * Sweeps the size of generated programs, doubling it from 1K lines up to maxLines (4M by default), and
+ * prints the throughput of the assembler against the size: once for a program held as a List<String> and
+ * assembled to getOutput, and once for the same program as a file that is memory mapped and streamed to an
+ * output file. Next to the throughput the heap retained by the list and its output is printed, so the point
+ * where the list based design stops scaling (the throughput falls off or the heap runs out) shows up as the
+ * curve bends. After the sweep the throughput of both is drawn as bars. The generator options are those
+ * of ProgramGenerator.
+ * **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScalingBenchmark {
+
+    // the smallest program size in lines, and the largest one unless another one is given
+    private static final int MIN_LINES = 1 << 10;
+    private static final int DEFAULT_MAX_LINES = 1 << 22;
+
+    // the time every size is measured for, after one warm up run
+    private static final long MEASUREMENT_NANOS = 1_000_000_000L;
+
+    // the width of the bars of the curve
+    private static final int BAR_WIDTH = 40;
+
+    // a benchmarked assembly, one call assembles the program once
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private ScalingBenchmark() {
+    }
+
+    // the average lines per second of runs of an assembly
+    private static double measure(int lines, Run run) throws IOException {
+        run.run();
+        long runs = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            run.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASUREMENT_NANOS);
+        return runs * (double) lines / (elapsed / 1e9);
+    }
+
+    // the heap in use after a garbage collection, in bytes
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // a bar as long as the fraction of the width
+    private static String bar(double fraction) {
+        return "#".repeat((int) Math.round(fraction * BAR_WIDTH));
+    }
+
+    /**
+     * Run the sweep and print a line for every size, then the curves of the throughput.
+     *
+     * @param args the options of ProgramGenerator, optionally followed by the largest size in lines
+     * @throws IOException if the temporary files can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        ProgramGenerator generator = new ProgramGenerator();
+        int argument = 0;
+        while (argument < args.length && args[argument].startsWith("--")) {
+            argument = generator.parseOption(args, argument);
+        }
+        int maxLines = argument < args.length ? Integer.parseInt(args[argument].replace("_", ""))
+                : DEFAULT_MAX_LINES;
+
+        Path source = Files.createTempFile("scaling", ".txt");
+        Path output = Files.createTempFile("scaling", ".out");
+        source.toFile().deleteOnExit();
+        output.toFile().deleteOnExit();
+
+        System.out.printf("%10s %14s %14s %12s%n", "Lines", "file lines/s", "list lines/s", "list heap MB");
+        List<double[]> results = new ArrayList<>();
+        double maxThroughput = 0;
+        for (int lines = MIN_LINES; lines <= maxLines; lines *= 2) {
+            Assembler assembler = new Assembler();
+
+            // the program as a list, until the heap can not hold it anymore
+            double listThroughput = 0;
+            String listColumns;
+            try {
+                long baseline = usedHeap();
+                List<String> program = generator.generate(lines);
+                listThroughput = measure(lines, () -> assembler.assemble(program));
+                double heap = (usedHeap() - baseline) / (double) (1 << 20);
+                listColumns = String.format("%14.0f %12.1f", listThroughput, heap);
+                assembler.reset();
+            } catch (OutOfMemoryError e) {
+                assembler.reset();
+                listColumns = String.format("%14s %12s", "out of memory", "-");
+            }
+
+            // the program as a mapped file, streamed to the output file
+            generator.write(lines, source);
+            double fileThroughput = measure(lines,
+                    () -> assembler.assembleFile(source, output, Assembler.Mode.TWO_PASS, false));
+            maxThroughput = Math.max(maxThroughput, Math.max(listThroughput, fileThroughput));
+
+            System.out.printf("%10d %14.0f %s%n", lines, fileThroughput, listColumns);
+            results.add(new double[] {lines, listThroughput, fileThroughput});
+        }
+
+        // the curves, relative to the highest throughput
+        System.out.println();
+        for (double[] result : results) {
+            System.out.printf("%10d file %s%n", (long) result[0], bar(result[2] / maxThroughput));
+            System.out.printf("%10s list %s%n", "", bar(result[1] / maxThroughput));
+        }
+    }
+}
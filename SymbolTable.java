@@ -0,0 +1,193 @@
+/**************************************************************************************************
+ * Compilation: javac SymbolTable.java
+ * Dependencies: none
+ *
+ * The symbols (labels) of a program and their addresses. Every symbol gets an id, the number of symbols
+ * seen before it, and everything else refers to the symbol by its id: the address of a symbol is a primitive
+ * int in an array indexed by the id. Symbols are looked up directly on the characters of the line they
+ * appear in (a String or a view of the source bytes) in an open addressing hash table with linear probing,
+ * so a String is only created the first time a symbol is seen, for messages and listings. Symbols can be
+ * of any length.
+ * **************************************************************************************************/
+
+import java.util.Arrays;
+
+final class SymbolTable {
+
+    // the id of no symbol, such as the label of a line without one
+    static final int NONE = -1;
+
+    // the address of a symbol that is not (yet) defined as a label
+    static final int UNDEFINED = -1;
+
+    // the hash table, a slot holds the id of a symbol plus one, an empty slot is 0
+    private int[] slots = new int[64];
+
+    // the symbols, their hashes and their addresses, indexed by id
+    private String[] symbols = new String[32];
+    private int[] hashes = new int[32];
+    private int[] addresses = new int[32];
+    private int size;
+
+    /**
+     * Get the id of the symbol formed by the characters in [start, end) of a line, adding the symbol as
+     * undefined if it is new.
+     *
+     * @param line the line containing the symbol
+     * @param start the index of the first character of the symbol
+     * @param end the index just after the last character of the symbol
+     * @return the id of the symbol
+     */
+    int intern(CharSequence line, int start, int end) {
+        int hash = hash(line, start, end);
+        int mask = slots.length - 1;
+
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(symbols[id], line, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // a new symbol
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, 2 * size);
+            hashes = Arrays.copyOf(hashes, 2 * size);
+            addresses = Arrays.copyOf(addresses, 2 * size);
+        }
+        int id = size++;
+        symbols[id] = line.subSequence(start, end).toString();
+        hashes[id] = hash;
+        addresses[id] = UNDEFINED;
+        slots[slot] = id + 1;
+        if (size * 2 > slots.length) {
+            resize();
+        }
+        return id;
+    }
+
+    /**
+     * Get the id of a symbol, adding the symbol as undefined if it is new.
+     *
+     * @param symbol the symbol
+     * @return the id of the symbol
+     */
+    int intern(String symbol) {
+        return intern(symbol, 0, symbol.length());
+    }
+
+    /**
+     * Find the id of a symbol without adding it.
+     *
+     * @param symbol the symbol
+     * @return the id of the symbol, NONE if the table does not contain it
+     */
+    int find(CharSequence symbol) {
+        return find(symbol, 0, symbol.length());
+    }
+
+    /**
+     * Find the id of the symbol formed by the characters in [start, end) of a line without adding it.
+     *
+     * @param line the line containing the symbol
+     * @param start the index of the first character of the symbol
+     * @param end the index just after the last character of the symbol
+     * @return the id of the symbol, NONE if the table does not contain it
+     */
+    int find(CharSequence line, int start, int end) {
+        int hash = hash(line, start, end);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(symbols[id], line, start, end)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * The symbol with an id.
+     *
+     * @param id the id of the symbol
+     * @return the symbol, null for NONE
+     */
+    String getSymbol(int id) {
+        return id == NONE ? null : symbols[id];
+    }
+
+    /**
+     * The address of a symbol.
+     *
+     * @param id the id of the symbol
+     * @return the address of the label, UNDEFINED if it is not defined
+     */
+    int getAddress(int id) {
+        return addresses[id];
+    }
+
+    /**
+     * Define a symbol as a label at an address, or make it undefined again.
+     *
+     * @param id the id of the symbol
+     * @param address the address of the label, UNDEFINED to remove the label
+     */
+    void setAddress(int id, int address) {
+        addresses[id] = address;
+    }
+
+    /**
+     * The number of symbols in the table, the ids are [0, size()).
+     *
+     * @return the number of symbols
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Remove all of the symbols, keeping the memory of the table.
+     */
+    void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(symbols, 0, size, null);
+        size = 0;
+    }
+
+    // the same hash as String.hashCode, spread so that the low bits depend on all of the characters
+    private static int hash(CharSequence line, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // does the symbol consist of the characters in [start, end) of the line?
+    private static boolean matches(String symbol, CharSequence line, int start, int end) {
+        if (symbol.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != line.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // double the size of the hash table
+    private void resize() {
+        slots = new int[2 * slots.length];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+}